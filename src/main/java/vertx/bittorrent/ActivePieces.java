@@ -0,0 +1,94 @@
+package vertx.bittorrent;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+
+public class ActivePieces {
+
+    // shared state of all pieces that are currently being downloaded, indexed by piece
+    private final PieceState[] pieceStates;
+
+    // same pieces in the order they were started
+    private final List<PieceState> pieces = new ArrayList<>();
+
+    // pieces that were downloaded and are being hashed or written to disk
+    private final BitSet processing;
+
+    @Getter
+    private int processingCount = 0;
+
+    // buffers holding the downloaded blocks of the pieces
+    private final PieceBufferPool bufferPool;
+
+    // active and processing pieces are not picked again
+    private final PiecePicker piecePicker;
+
+    public ActivePieces(int piecesCount, PieceBufferPool bufferPool, PiecePicker piecePicker) {
+        this.bufferPool = bufferPool;
+        this.piecePicker = piecePicker;
+        this.pieceStates = new PieceState[piecesCount];
+        this.processing = new BitSet(piecesCount);
+    }
+
+    public PieceState get(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceStates.length) {
+            return null;
+        }
+
+        return pieceStates[pieceIndex];
+    }
+
+    public boolean isActive(int pieceIndex) {
+        return pieceStates[pieceIndex] != null;
+    }
+
+    public int getActiveCount() {
+        return pieces.size();
+    }
+
+    public List<PieceState> getPieces() {
+        return Collections.unmodifiableList(pieces);
+    }
+
+    public PieceState activate(int pieceIndex, long pieceLength) {
+        PieceState pieceState = pieceStates[pieceIndex];
+
+        if (pieceState == null) {
+            pieceState = new PieceState(pieceIndex, pieceLength, bufferPool);
+
+            pieceStates[pieceIndex] = pieceState;
+            pieces.add(pieceState);
+
+            piecePicker.setInFlight(pieceIndex, true);
+        }
+
+        return pieceState;
+    }
+
+    public void remove(int pieceIndex) {
+        PieceState pieceState = pieceStates[pieceIndex];
+
+        if (pieceState != null) {
+            pieceStates[pieceIndex] = null;
+            pieces.remove(pieceState);
+
+            piecePicker.setInFlight(pieceIndex, processing.get(pieceIndex));
+        }
+    }
+
+    public boolean isProcessing(int pieceIndex) {
+        return processing.get(pieceIndex);
+    }
+
+    public void setProcessing(int pieceIndex, boolean value) {
+        if (processing.get(pieceIndex) != value) {
+            processing.set(pieceIndex, value);
+            processingCount += value ? 1 : -1;
+
+            piecePicker.setInFlight(pieceIndex, value || pieceStates[pieceIndex] != null);
+        }
+    }
+}
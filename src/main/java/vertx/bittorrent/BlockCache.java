@@ -0,0 +1,204 @@
+package vertx.bittorrent;
+
+import io.vertx.core.buffer.Buffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import lombok.Getter;
+import vertx.bittorrent.model.HashKey;
+
+/**
+ * Read cache for blocks of all torrents with a segmented LRU policy. New blocks enter the probationary segment and are
+ * only promoted to the protected segment when they are read again, so a single scan over a torrent cannot evict
+ * blocks that are requested by many peers.
+ */
+public class BlockCache {
+    // share of the capacity that is reserved for blocks that were read more than once
+    private static final double PROTECTED_RATIO = 0.8;
+
+    @Getter
+    private final long capacity;
+
+    private final long protectedCapacity;
+
+    // both segments are in access order, the eldest entry is the least recently used one
+    private final LinkedHashMap<BlockKey, Buffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<BlockKey, Buffer> protectedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Getter
+    private long size = 0;
+
+    private long protectedSize = 0;
+
+    @Getter
+    private long hits = 0;
+
+    @Getter
+    private long misses = 0;
+
+    @Getter
+    private long evictions = 0;
+
+    public BlockCache(long capacity) {
+        this.capacity = Math.max(capacity, 0);
+        this.protectedCapacity = (long) (this.capacity * PROTECTED_RATIO);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public int getBlockCount() {
+        return probation.size() + protectedBlocks.size();
+    }
+
+    public Buffer get(HashKey infoHash, int pieceIndex, int begin) {
+        BlockKey key = new BlockKey(infoHash, pieceIndex, begin);
+
+        Buffer block = protectedBlocks.get(key);
+
+        if (block != null) {
+            hits++;
+            return block;
+        }
+
+        block = probation.remove(key);
+
+        if (block == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+
+        // second access, promote to the protected segment
+        protectedBlocks.put(key, block);
+        protectedSize += block.length();
+
+        while (protectedSize > protectedCapacity && !protectedBlocks.isEmpty()) {
+            var eldest = removeEldest(protectedBlocks);
+
+            protectedSize -= eldest.getValue().length();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+
+        return block;
+    }
+
+    public boolean contains(HashKey infoHash, int pieceIndex, int begin) {
+        BlockKey key = new BlockKey(infoHash, pieceIndex, begin);
+
+        return probation.containsKey(key) || protectedBlocks.containsKey(key);
+    }
+
+    public void put(HashKey infoHash, int pieceIndex, int begin, Buffer block) {
+        if (block.length() > capacity) {
+            return;
+        }
+
+        BlockKey key = new BlockKey(infoHash, pieceIndex, begin);
+
+        remove(key);
+
+        probation.put(key, block);
+        size += block.length();
+
+        while (size > capacity) {
+            Map.Entry<BlockKey, Buffer> eldest;
+
+            // the new block is only evicted if nothing else is left
+            if (probation.size() > 1 || protectedBlocks.isEmpty()) {
+                eldest = removeEldest(probation);
+            } else {
+                eldest = removeEldest(protectedBlocks);
+                protectedSize -= eldest.getValue().length();
+            }
+
+            size -= eldest.getValue().length();
+            evictions++;
+        }
+    }
+
+    /**
+     * Inserts consecutive blocks of a piece starting at the offset. The data is copied, so the buffer can be reused.
+     */
+    public void putBlocks(HashKey infoHash, int pieceIndex, int offset, Buffer data) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        for (int start = 0; start < data.length(); start += ProtocolHandler.MAX_BLOCK_SIZE) {
+            int end = Math.min(start + ProtocolHandler.MAX_BLOCK_SIZE, data.length());
+
+            put(infoHash, pieceIndex, offset + start, data.getBuffer(start, end));
+        }
+    }
+
+    public void removePiece(HashKey infoHash, int pieceIndex, int pieceLength) {
+        for (int begin = 0; begin < pieceLength; begin += ProtocolHandler.MAX_BLOCK_SIZE) {
+            remove(new BlockKey(infoHash, pieceIndex, begin));
+        }
+    }
+
+    public void clear() {
+        probation.clear();
+        protectedBlocks.clear();
+        size = 0;
+        protectedSize = 0;
+    }
+
+    private void remove(BlockKey key) {
+        Buffer block = probation.remove(key);
+
+        if (block == null) {
+            block = protectedBlocks.remove(key);
+
+            if (block != null) {
+                protectedSize -= block.length();
+            }
+        }
+
+        if (block != null) {
+            size -= block.length();
+        }
+    }
+
+    private static Map.Entry<BlockKey, Buffer> removeEldest(LinkedHashMap<BlockKey, Buffer> segment) {
+        Iterator<Map.Entry<BlockKey, Buffer>> iterator = segment.entrySet().iterator();
+        var eldest = iterator.next();
+        iterator.remove();
+
+        return eldest;
+    }
+
+    private static class BlockKey {
+        private final HashKey infoHash;
+        private final int pieceIndex;
+        private final int begin;
+
+        private BlockKey(HashKey infoHash, int pieceIndex, int begin) {
+            this.infoHash = infoHash;
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof BlockKey other) {
+                return pieceIndex == other.pieceIndex && begin == other.begin && infoHash.equals(other.infoHash);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(infoHash, pieceIndex, begin);
+        }
+    }
+}
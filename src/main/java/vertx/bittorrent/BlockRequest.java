@@ -0,0 +1,24 @@
+package vertx.bittorrent;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class BlockRequest {
+    private final int pieceIndex;
+    private final int begin;
+    private final int length;
+
+    private final long requestedAt;
+
+    public long getKey() {
+        return toKey(pieceIndex, begin);
+    }
+
+    public static long toKey(int pieceIndex, int begin) {
+        return ((long) pieceIndex << 32) | (begin & 0xFFFFFFFFL);
+    }
+}
@@ -4,10 +4,16 @@ import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
+import vertx.bittorrent.model.ClientOptions;
+import vertx.bittorrent.model.Peer;
+import vertx.bittorrent.storage.DiskScheduler;
+import vertx.bittorrent.storage.FileHandlePool;
 
 @Slf4j
 public class ClientState {
@@ -22,12 +28,50 @@ public class ClientState {
     @Getter
     private long totalBytesUploaded = 0L;
 
+    @Getter
+    private long totalBytesWasted = 0L;
+
     @Getter
     @Setter
     private int serverPort;
 
-    public ClientState(Vertx vertx) {
+    // read cache for blocks uploaded by all torrents
+    @Getter
+    private final BlockCache blockCache;
+
+    // open files of all torrents
+    @Getter
+    private final FileHandlePool fileHandlePool;
+
+    // checks pieces on disk for all torrents
+    @Getter
+    private final RecheckService recheckService;
+
+    // orders disk operations of all torrents per storage device
+    @Getter
+    private final DiskScheduler diskScheduler;
+
+    // verifies downloaded pieces of all torrents
+    @Getter
+    private final HashingService hashingService;
+
+    // buffers of pieces being downloaded by all torrents
+    @Getter
+    private final PieceBufferPool pieceBufferPool;
+
+    // banned hosts and the time in milliseconds since epoch at which the ban ends
+    private final Map<String, Long> bannedHosts = new HashMap<>();
+
+    public ClientState(Vertx vertx, ClientOptions clientOptions) {
         this.vertx = vertx;
+        this.blockCache = new BlockCache(clientOptions.getReadCacheSize() * 1024L * 1024L);
+        this.fileHandlePool = new FileHandlePool(vertx, clientOptions.getMaxOpenFiles());
+        this.recheckService = new RecheckService(vertx, clientOptions.getRecheckParallelism());
+        this.diskScheduler = new DiskScheduler(
+                clientOptions.getDiskQueueDepth(), clientOptions.getMaxPendingWrites() * 1024L * 1024L);
+        this.hashingService = new HashingService(
+                vertx, clientOptions.getHashingThreads(), clientOptions.getMaxPendingHashes() * 1024L * 1024L);
+        this.pieceBufferPool = new PieceBufferPool(clientOptions.getPieceBufferPool() * 1024L * 1024L);
     }
 
     public void addTotalBytesDownloaded(long bytes) {
@@ -38,8 +82,36 @@ public class ClientState {
         totalBytesUploaded += bytes;
     }
 
+    public void addTotalBytesWasted(long bytes) {
+        totalBytesWasted += bytes;
+    }
+
+    public void banPeer(Peer peer, long duration) {
+        log.info("Banning {} for {} seconds", peer.getAddress().hostAddress(), duration / 1000);
+
+        bannedHosts.put(peer.getAddress().hostAddress(), System.currentTimeMillis() + duration);
+    }
+
+    public boolean isBanned(Peer peer) {
+        String host = peer.getAddress().hostAddress();
+        Long bannedUntil = bannedHosts.get(host);
+
+        if (bannedUntil == null) {
+            return false;
+        }
+
+        if (bannedUntil <= System.currentTimeMillis()) {
+            bannedHosts.remove(host);
+            return false;
+        }
+
+        return true;
+    }
+
     public Future<Void> close() {
-        return Future.succeededFuture();
+        pieceBufferPool.clear();
+
+        return hashingService.close();
     }
 
     private static byte[] generatePeerId() {
@@ -33,7 +33,7 @@ public class ClientVerticle extends AbstractVerticle {
     public void start() throws Exception {
         FileSystem fs = vertx.fileSystem();
 
-        clientState = new ClientState(vertx);
+        clientState = new ClientState(vertx, clientOptions);
 
         if (!clientOptions.isDhtDisable()) {
             dhtClient = new DHTClient(vertx, clientOptions, clientState);
@@ -49,6 +49,12 @@ public class ClientVerticle extends AbstractVerticle {
             Peer peer = new Peer(socket.remoteAddress());
             log.debug("[{}] Peer connected", peer);
 
+            if (clientState.isBanned(peer)) {
+                log.debug("[{}] Refusing banned peer", peer);
+                socket.close();
+                return;
+            }
+
             PeerConnection connection = new PeerConnection(socket, clientState, null, peer);
 
             connection.onHandshake(handshake -> {
@@ -108,6 +114,7 @@ public class ClientVerticle extends AbstractVerticle {
 
         Future.join(torrents.values().stream().map(t -> t.close()).toList())
                 .flatMap(v -> netServer.close())
+                .flatMap(v -> clientState.close())
                 .onComplete(ar -> stopPromise.complete());
     }
 }
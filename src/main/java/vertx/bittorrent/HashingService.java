@@ -0,0 +1,89 @@
+package vertx.bittorrent;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import lombok.Getter;
+
+/**
+ * Hashes downloaded blocks on a bounded pool of threads of its own, so hashing large pieces neither blocks the event
+ * loop nor competes with file access on the worker pool. Results are delivered on the context of the caller.
+ */
+public class HashingService {
+    public static final int DEFAULT_THREADS = 2;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 32L * 1024 * 1024;
+
+    private final Vertx vertx;
+
+    @Getter
+    private final int threads;
+
+    // created on first use
+    private WorkerExecutor executor;
+
+    // bytes waiting to be hashed above which no new blocks should be requested
+    @Getter
+    private final long maxQueuedBytes;
+
+    @Getter
+    private int queuedCount = 0;
+
+    @Getter
+    private long queuedBytes = 0;
+
+    @Getter
+    private long hashedBytes = 0;
+
+    public HashingService(Vertx vertx, int threads, long maxQueuedBytes) {
+        this.vertx = vertx;
+        this.threads = Math.max(threads, 1);
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Whether hashing falls behind the download, so no new blocks should be requested.
+     */
+    public boolean isSaturated() {
+        return maxQueuedBytes > 0 && queuedBytes >= maxQueuedBytes;
+    }
+
+    /**
+     * Updates the digest with the data after the previous update of the same digest completed. The data must not
+     * change until the returned future completes.
+     */
+    public Future<Void> update(Future<Void> previous, MessageDigest digest, ByteBuffer data) {
+        int length = data.remaining();
+
+        queuedCount++;
+        queuedBytes += length;
+
+        return previous.compose(v -> getExecutor().<Void>executeBlocking(
+                        () -> {
+                            digest.update(data);
+                            return null;
+                        },
+                        false))
+                .onComplete(ar -> {
+                    queuedCount--;
+                    queuedBytes -= length;
+
+                    if (ar.succeeded()) {
+                        hashedBytes += length;
+                    }
+                });
+    }
+
+    public Future<Void> close() {
+        return executor != null ? executor.close() : Future.succeededFuture();
+    }
+
+    private WorkerExecutor getExecutor() {
+        if (executor == null) {
+            executor = vertx.createSharedWorkerExecutor("hashing", threads);
+        }
+
+        return executor;
+    }
+}
@@ -5,13 +5,15 @@ import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetSocket;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import vertx.bittorrent.PieceState.BlockState;
 import vertx.bittorrent.messages.BitfieldMessage;
 import vertx.bittorrent.messages.CancelMessage;
 import vertx.bittorrent.messages.ChokeMessage;
@@ -26,13 +28,11 @@ import vertx.bittorrent.messages.RequestMessage;
 import vertx.bittorrent.messages.UnchokeMessage;
 import vertx.bittorrent.model.Bitfield;
 import vertx.bittorrent.model.Peer;
-import vertx.bittorrent.utils.HashUtils;
+import vertx.bittorrent.storage.FileSpan;
 
 @Slf4j
 public class PeerConnection {
 
-    private static final int MAX_REQUESTED_PIECES_LIMIT = 3;
-
     private final long connectedAt = System.currentTimeMillis();
 
     private final NetSocket socket;
@@ -53,6 +53,9 @@ public class PeerConnection {
     private boolean handshakeSent = false;
     private boolean handshakeReceived = false;
 
+    // a bitfield is only valid as the first message after the handshake
+    private boolean bitfieldExpected = false;
+
     @Getter
     private boolean choked = true;
 
@@ -72,6 +75,14 @@ public class PeerConnection {
     @Setter
     private int previousBytesDownloaded = 0;
 
+    // bytes of blocks that were received but not needed anymore, e.g. duplicates in end game
+    @Getter
+    private int bytesWasted = 0;
+
+    @Getter
+    @Setter
+    private int previousBytesWasted = 0;
+
     @Getter
     private int bytesUploaded = 0;
 
@@ -101,18 +112,22 @@ public class PeerConnection {
     private long remoteWaitingDuration = 0;
 
     @Getter
-    private long downloadedPieces = 0;
+    private final RequestPipeline requestPipeline = new RequestPipeline();
 
     @Getter
-    private long faultyPieces = 0;
+    private int lastRequestedPiece = -1;
 
+    // last block the peer requested from us, used to detect sequential reads
     @Getter
-    private int maxRequestedPieces = 1;
+    @Setter
+    private RequestMessage lastUploadRequest;
 
-    private int currentRequestCount = 0;
-    private int requestLimit = 12;
+    // peer did not answer requests in time, only one request is sent until it delivers a block again
+    @Getter
+    private boolean snubbed = false;
 
-    private Map<Integer, PieceState> pieceStates = new HashMap<>();
+    // pending block requests in the order they were sent
+    private final Map<Long, BlockRequest> pendingRequests = new LinkedHashMap<>();
 
     private Handler<HandshakeMessage> handshakeHandler;
     private Handler<Bitfield> bitfieldHandler;
@@ -121,7 +136,7 @@ public class PeerConnection {
     private Handler<Void> interestedHandler;
     private Handler<Void> notInterestedHandler;
     private Handler<RequestMessage> requestHandler;
-    private Handler<Piece> pieceHandler;
+    private Handler<PieceMessage> blockHandler;
     private Handler<Integer> hasPieceHandler;
     private Handler<Void> closedHandler;
 
@@ -170,8 +185,18 @@ public class PeerConnection {
         return System.currentTimeMillis() - connectedAt;
     }
 
-    public int getRequestedPiecesCount() {
-        return pieceStates.size();
+    public int getPendingRequestsCount() {
+        return pendingRequests.size();
+    }
+
+    public int getAvailableRequestSlots() {
+        if (remoteChoked) {
+            return 0;
+        }
+
+        int depth = snubbed ? 1 : requestPipeline.getDepth();
+
+        return Math.max(depth - pendingRequests.size(), 0);
     }
 
     public double getUnchokedDuration() {
@@ -255,8 +280,12 @@ public class PeerConnection {
         return (System.currentTimeMillis() - lastMessageSentAt) / 1000.0;
     }
 
-    public boolean isPieceRequested(int index) {
-        return pieceStates.containsKey(index);
+    public boolean isBlockRequested(int pieceIndex, int begin) {
+        return pendingRequests.containsKey(BlockRequest.toKey(pieceIndex, begin));
+    }
+
+    public Collection<BlockRequest> getPendingRequests() {
+        return Collections.unmodifiableCollection(pendingRequests.values());
     }
 
     public boolean isHandshakeCompleted() {
@@ -303,8 +332,8 @@ public class PeerConnection {
         return this;
     }
 
-    public PeerConnection onPieceCompleted(Handler<Piece> handler) {
-        pieceHandler = handler;
+    public PeerConnection onBlock(Handler<PieceMessage> handler) {
+        blockHandler = handler;
         return this;
     }
 
@@ -396,76 +425,126 @@ public class PeerConnection {
         });
     }
 
-    public void requestPiece(int pieceIndex) {
-        if (!pieceStates.containsKey(pieceIndex)) {
-            long pieceLength = torrentState.getTorrent().getLengthForPiece(pieceIndex);
+    /**
+     * Sends a block straight from the files, so the data is not copied into memory. The connection is closed if a file
+     * can't be sent, as the header of the message was already sent.
+     *
+     * <p>Vert.x opens and stats each file on the event loop before sending it. This is cheaper than reading the block
+     * on a worker thread and copying it through the heap, but a slow disk may stall the event loop, so the block cache
+     * is the better choice for such disks.
+     */
+    public Future<Void> piece(int index, int begin, List<FileSpan> spans) {
+        if (socket == null) {
+            return Future.succeededFuture();
+        }
 
-            pieceStates.put(pieceIndex, new PieceState(pieceLength));
+        int length = spans.stream().mapToInt(FileSpan::getLength).sum();
 
-            processRequests();
+        log.debug(
+                "[{}] Sending PieceMessage(pieceIndex={}, begin={}, data.length={}) from file",
+                peer,
+                index,
+                begin,
+                length);
+
+        List<Future<Void>> futures = new ArrayList<>();
+
+        futures.add(socket.write(PieceMessage.header(index, begin, length)));
+
+        for (var span : spans) {
+            futures.add(socket.sendFile(span.getPath(), span.getOffset(), span.getLength()));
         }
+
+        return Future.all(futures)
+                .<Void>mapEmpty()
+                .onSuccess(v -> {
+                    lastMessageSentAt = System.currentTimeMillis();
+                    bytesUploaded += length;
+                })
+                .onFailure(ex -> close());
     }
 
-    public void cancelPiece(int pieceIndex) {
-        PieceState pieceState = pieceStates.get(pieceIndex);
+    public void requestBlock(int pieceIndex, int begin, int length) {
+        BlockRequest request = new BlockRequest(pieceIndex, begin, length, System.currentTimeMillis());
 
-        if (pieceState != null) {
-            for (int i = 0; i < pieceState.getBlocksCount(); i++) {
-                if (pieceState.getBlockState(i) == BlockState.Requested) {
-                    currentRequestCount--;
+        if (pendingRequests.putIfAbsent(request.getKey(), request) == null) {
+            if (requestedAt == -1) {
+                requestedAt = request.getRequestedAt();
+            }
 
-                    if (currentRequestCount <= 0 && requestedAt != -1) {
-                        requestingDuration += (System.currentTimeMillis() - requestedAt);
-                        requestedAt = -1;
-                    }
+            requestPipeline.onRequestSent(request.getRequestedAt());
+            lastRequestedPiece = pieceIndex;
 
-                    sendMessage(
-                            new CancelMessage(pieceIndex, pieceState.getBlockOffset(i), pieceState.getBlockSize(i)));
-                }
-            }
+            sendMessage(new RequestMessage(pieceIndex, begin, length));
+        }
+    }
+
+    public void addBytesWasted(int bytes) {
+        bytesWasted += bytes;
+    }
+
+    public boolean cancelBlock(int pieceIndex, int begin) {
+        BlockRequest request = pendingRequests.remove(BlockRequest.toKey(pieceIndex, begin));
 
-            pieceStates.remove(pieceIndex);
+        if (request != null) {
+            updateRequestingDuration();
+
+            sendMessage(new CancelMessage(pieceIndex, begin, request.getLength()));
+
+            return true;
         }
+
+        return false;
     }
 
-    private boolean canRequest() {
-        if (remoteChoked || pieceStates.isEmpty()) {
-            return false;
+    /**
+     * Cancels all requests that were not answered within the request timeout and marks the peer as snubbed.
+     *
+     * @return requests that timed out
+     */
+    public List<BlockRequest> cancelTimedOutRequests(long now) {
+        long timeout = requestPipeline.getRequestTimeout();
+
+        List<BlockRequest> timedOut = pendingRequests.values().stream()
+                .filter(request -> now - request.getRequestedAt() > timeout)
+                .toList();
+
+        if (timedOut.isEmpty()) {
+            return timedOut;
         }
 
-        for (var pieceState : pieceStates.values()) {
-            for (int i = 0; i < pieceState.getBlocksCount(); i++) {
-                if (pieceState.getBlockState(i) == BlockState.Queued) {
-                    return true;
-                }
-            }
+        log.debug("[{}] {} requests timed out after {} ms", peer, timedOut.size(), timeout);
+
+        for (var request : timedOut) {
+            cancelBlock(request.getPieceIndex(), request.getBegin());
         }
 
-        return false;
+        snubbed = true;
+        requestPipeline.shrink();
+
+        return timedOut;
     }
 
-    private void processRequests() {
-        while (currentRequestCount < requestLimit && canRequest()) {
-            pieces:
-            for (var entry : pieceStates.entrySet()) {
-                int pieceIndex = entry.getKey();
-                var pieceState = entry.getValue();
+    /**
+     * Drops all pending requests without notifying the peer, e.g. after being choked.
+     *
+     * @return requests that were pending
+     */
+    public List<BlockRequest> clearPendingRequests() {
+        List<BlockRequest> requests = new ArrayList<>(pendingRequests.values());
+
+        pendingRequests.clear();
+        updateRequestingDuration();
 
-                for (int i = 0; i < pieceState.getBlocksCount(); i++) {
-                    if (pieceState.getBlockState(i) == BlockState.Queued) {
-                        currentRequestCount++;
-                        pieceState.setBlockState(i, BlockState.Requested);
-                        sendMessage(new RequestMessage(
-                                pieceIndex, pieceState.getBlockOffset(i), pieceState.getBlockSize(i)));
+        return requests;
+    }
 
-                        if (requestedAt == -1) {
-                            requestedAt = System.currentTimeMillis();
-                        }
+    private void updateRequestingDuration() {
+        if (pendingRequests.isEmpty() && requestedAt != -1) {
+            requestingDuration += (System.currentTimeMillis() - requestedAt);
+            requestedAt = -1;
 
-                        break pieces;
-                    }
-                }
-            }
+            requestPipeline.onIdle();
         }
     }
 
@@ -474,15 +553,26 @@ public class PeerConnection {
 
         log.debug("[{}] Received {}", peer, message);
 
+        boolean firstMessage = bitfieldExpected;
+        bitfieldExpected = false;
+
         if (message instanceof HandshakeMessage handshakeMessage) {
             if (!handshakeReceived) {
                 handshakeReceived = true;
+                bitfieldExpected = true;
 
                 if (handshakeHandler != null) {
                     handshakeHandler.handle(handshakeMessage);
                 }
             }
         } else if (message instanceof BitfieldMessage bitfieldMessage) {
+            if (!firstMessage) {
+                // pieces announced so far were already counted, a late bitfield would count them again
+                log.debug("[{}] Closing connection after unexpected bitfield", peer);
+                close();
+                return;
+            }
+
             bitfield = bitfieldMessage.getBitfield();
 
             if (bitfieldHandler != null) {
@@ -542,10 +632,12 @@ public class PeerConnection {
         } else if (message instanceof HaveMessage haveMessage) {
             int pieceIndex = haveMessage.getPieceIndex();
 
-            bitfield.setPiece(pieceIndex);
+            if (!bitfield.hasPiece(pieceIndex)) {
+                bitfield.setPiece(pieceIndex);
 
-            if (hasPieceHandler != null) {
-                hasPieceHandler.handle(pieceIndex);
+                if (hasPieceHandler != null) {
+                    hasPieceHandler.handle(pieceIndex);
+                }
             }
         } else if (message instanceof RequestMessage requestMessage) {
             if (requestHandler != null) {
@@ -554,55 +646,25 @@ public class PeerConnection {
         } else if (message instanceof PieceMessage pieceMessage) {
             bytesDownloaded += pieceMessage.getData().length();
 
-            int pieceIndex = pieceMessage.getPieceIndex();
-            int begin = pieceMessage.getBegin();
-
-            PieceState pieceState = pieceStates.get(pieceIndex);
+            long key = BlockRequest.toKey(pieceMessage.getPieceIndex(), pieceMessage.getBegin());
+            BlockRequest request = pendingRequests.get(key);
 
-            if (pieceState != null) {
-                if (pieceState.getBlockStateByOffset(begin) == BlockState.Requested) {
-                    // piece was expected
+            if (request != null && request.getLength() == pieceMessage.getData().length()) {
+                // block was expected
+                long now = System.currentTimeMillis();
 
-                    pieceState.getData().setBuffer(begin, pieceMessage.getData());
+                pendingRequests.remove(key);
+                snubbed = false;
+                requestPipeline.onBlockReceived(now, now - request.getRequestedAt(), request.getLength());
+                updateRequestingDuration();
 
-                    pieceState.setBlockStateByOffset(begin, BlockState.Downloaded);
-                    currentRequestCount--;
-
-                    if (currentRequestCount <= 0 && requestedAt != -1) {
-                        requestingDuration += (System.currentTimeMillis() - requestedAt);
-                        requestedAt = -1;
-                    }
-
-                    if (pieceState.isCompleted()) {
-                        downloadedPieces++;
-
-                        pieceStates.remove(pieceIndex);
-
-                        byte[] hash = HashUtils.sha1(pieceState.getData());
-                        ByteBuffer pieceHash = torrentState.getTorrent().getHashForPiece(pieceIndex);
-                        boolean hashValid = HashUtils.isEqual(hash, pieceHash);
-
-                        Piece piece = Piece.builder()
-                                .index(pieceIndex)
-                                .data(pieceState.getData())
-                                .hash(hash)
-                                .hashValid(hashValid)
-                                .build();
-
-                        if (!hashValid) {
-                            faultyPieces++;
-                        } else {
-                            maxRequestedPieces = Math.min(maxRequestedPieces + 1, MAX_REQUESTED_PIECES_LIMIT);
-                        }
-
-                        if (pieceHandler != null) {
-                            pieceHandler.handle(piece);
-                        }
-                    }
+                if (blockHandler != null) {
+                    blockHandler.handle(pieceMessage);
                 }
+            } else {
+                // block was cancelled or never requested
+                bytesWasted += pieceMessage.getData().length();
             }
-
-            processRequests();
         }
     }
 
@@ -0,0 +1,7 @@
+package vertx.bittorrent;
+
+public enum PeerSpeed {
+    Slow,
+    Medium,
+    Fast
+}
@@ -3,6 +3,7 @@ package vertx.bittorrent;
 import io.vertx.core.buffer.Buffer;
 import lombok.Builder;
 import lombok.Getter;
+import vertx.bittorrent.model.Peer;
 
 @Getter
 @Builder
@@ -11,4 +12,7 @@ public class Piece {
     private final Buffer data;
     private final byte[] hash;
     private final boolean hashValid;
+
+    // peer that sent each block
+    private final Peer[] contributors;
 }
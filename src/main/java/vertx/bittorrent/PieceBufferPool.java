@@ -0,0 +1,131 @@
+package vertx.bittorrent;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+
+/**
+ * Reuses the buffers holding pieces while they are downloaded instead of allocating a large buffer for every piece.
+ * Buffers are grouped in size classes of powers of two, so the pieces of all torrents share buffers as long as their
+ * pieces have similar sizes. Released buffers are kept for reuse up to the maximum pooled size, buffers beyond it are
+ * dropped.
+ *
+ * <p>Buffers handed out are tracked until they are released, so tests can detect leaked buffers.
+ */
+public class PieceBufferPool {
+    public static final long DEFAULT_MAX_POOLED_BYTES = 128L * 1024 * 1024;
+
+    private static final int MIN_SIZE_CLASS = ProtocolHandler.MAX_BLOCK_SIZE;
+
+    // bytes of released buffers kept for reuse
+    @Getter
+    private final long maxPooledBytes;
+
+    // free buffers by size class
+    private final Map<Integer, Deque<ByteBuf>> freeBuffers = new TreeMap<>();
+
+    // buffers handed out and the memory backing them
+    private final Map<Buffer, ByteBuf> allocatedBuffers = new IdentityHashMap<>();
+
+    @Getter
+    private long pooledBytes = 0;
+
+    @Getter
+    private long allocatedBytes = 0;
+
+    @Getter
+    private long allocations = 0;
+
+    @Getter
+    private long reuses = 0;
+
+    public PieceBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Number of buffers that were allocated and not released yet.
+     */
+    public int getAllocatedCount() {
+        return allocatedBuffers.size();
+    }
+
+    /**
+     * Empty buffer with a fixed capacity of at least the length.
+     */
+    public Buffer allocate(int length) {
+        int sizeClass = getSizeClass(length);
+
+        Deque<ByteBuf> buffers = freeBuffers.get(sizeClass);
+        ByteBuf byteBuf = buffers != null ? buffers.poll() : null;
+
+        if (byteBuf != null) {
+            pooledBytes -= sizeClass;
+            reuses++;
+
+            byteBuf.clear();
+        } else {
+            // heap memory, copies of direct buffers made by Buffer.getBuffer() would never be freed
+            byteBuf = Unpooled.buffer(sizeClass, sizeClass);
+            allocations++;
+        }
+
+        allocatedBytes += sizeClass;
+
+        Buffer buffer = Buffer.buffer(byteBuf);
+        allocatedBuffers.put(buffer, byteBuf);
+
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer and slices of it must not be used afterwards.
+     *
+     * @throws IllegalStateException if the buffer was not allocated from this pool or was already released
+     */
+    public void release(Buffer buffer) {
+        ByteBuf byteBuf = allocatedBuffers.remove(buffer);
+
+        if (byteBuf == null) {
+            throw new IllegalStateException("Buffer was not allocated from this pool or was already released");
+        }
+
+        int sizeClass = byteBuf.capacity();
+
+        allocatedBytes -= sizeClass;
+
+        if (pooledBytes + sizeClass > maxPooledBytes) {
+            byteBuf.release();
+            return;
+        }
+
+        freeBuffers.computeIfAbsent(sizeClass, k -> new ArrayDeque<>()).push(byteBuf);
+        pooledBytes += sizeClass;
+    }
+
+    /**
+     * Drops all pooled buffers, e.g. when the client shuts down.
+     */
+    public void clear() {
+        for (var buffers : freeBuffers.values()) {
+            buffers.forEach(ByteBuf::release);
+        }
+
+        freeBuffers.clear();
+        pooledBytes = 0;
+    }
+
+    private static int getSizeClass(int length) {
+        if (length <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+}
@@ -0,0 +1,256 @@
+package vertx.bittorrent;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import vertx.bittorrent.model.Bitfield;
+import vertx.bittorrent.model.FilePriority;
+
+/**
+ * Picks the rarest missing piece with the highest priority. Missing pieces are kept in buckets per priority and
+ * availability, so availability changes are O(1). Pieces that are downloaded, hashed or written are taken out of the
+ * buckets until they are done, so picking only walks pieces that can be started: its cost is O(priorities +
+ * availability levels + k), where k is the number of rarer pieces the filter rejects, typically pieces the peer does
+ * not have. For a peer with only a few common pieces, k can still approach the number of missing pieces.
+ */
+public class PiecePicker {
+    // files are downloaded with normal priority unless changed
+    public static final int DEFAULT_PRIORITY = FilePriority.NORMAL.getValue();
+
+    private static final int INITIAL_BUCKET_CAPACITY = 16;
+
+    private final int piecesCount;
+
+    // number of connected peers that have each piece
+    private final int[] availability;
+
+    // pieces with priority 0 are never picked
+    private final int[] priorities;
+
+    // missing pieces grouped by priority
+    private Buckets[] levels;
+
+    // index of each piece inside its bucket, -1 if the piece is not tracked anymore
+    private final int[] positions;
+
+    // pieces that were completed and are never tracked again
+    private final BitSet completed;
+
+    private final Random random = new SecureRandom();
+
+    public PiecePicker(int piecesCount) {
+        this.piecesCount = piecesCount;
+        this.availability = new int[piecesCount];
+        this.priorities = new int[piecesCount];
+        this.positions = new int[piecesCount];
+        this.completed = new BitSet(piecesCount);
+
+        levels = new Buckets[DEFAULT_PRIORITY + 1];
+        levels[DEFAULT_PRIORITY] = new Buckets(piecesCount);
+
+        for (int i = 0; i < piecesCount; i++) {
+            priorities[i] = DEFAULT_PRIORITY;
+            levels[DEFAULT_PRIORITY].add(i, 0);
+        }
+    }
+
+    public int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    public int getPriority(int pieceIndex) {
+        return priorities[pieceIndex];
+    }
+
+    public boolean isTracked(int pieceIndex) {
+        return positions[pieceIndex] != -1;
+    }
+
+    public void addAvailability(Bitfield bitfield) {
+        for (int i = bitfield.nextPiece(0); i >= 0 && i < piecesCount; i = bitfield.nextPiece(i + 1)) {
+            incrementAvailability(i);
+        }
+    }
+
+    public void removeAvailability(Bitfield bitfield) {
+        for (int i = bitfield.nextPiece(0); i >= 0 && i < piecesCount; i = bitfield.nextPiece(i + 1)) {
+            decrementAvailability(i);
+        }
+    }
+
+    public void incrementAvailability(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= piecesCount) {
+            return;
+        }
+
+        int count = availability[pieceIndex]++;
+
+        if (positions[pieceIndex] != -1) {
+            Buckets buckets = levels[priorities[pieceIndex]];
+
+            buckets.remove(pieceIndex, count);
+            buckets.add(pieceIndex, count + 1);
+        }
+    }
+
+    public void decrementAvailability(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= piecesCount || availability[pieceIndex] == 0) {
+            return;
+        }
+
+        int count = availability[pieceIndex]--;
+
+        if (positions[pieceIndex] != -1) {
+            Buckets buckets = levels[priorities[pieceIndex]];
+
+            buckets.remove(pieceIndex, count);
+            buckets.add(pieceIndex, count - 1);
+        }
+    }
+
+    public void setPriority(int pieceIndex, int priority) {
+        if (priority < 0) {
+            throw new IllegalArgumentException("priority must not be negative");
+        }
+
+        if (priorities[pieceIndex] == priority) {
+            return;
+        }
+
+        if (priority >= levels.length) {
+            levels = Arrays.copyOf(levels, priority + 1);
+        }
+
+        if (positions[pieceIndex] != -1) {
+            levels[priorities[pieceIndex]].remove(pieceIndex, availability[pieceIndex]);
+            getLevel(priority).add(pieceIndex, availability[pieceIndex]);
+        }
+
+        priorities[pieceIndex] = priority;
+    }
+
+    /**
+     * Takes a piece out of the buckets while it is downloaded, hashed or written, and puts it back if it is still
+     * missing afterwards.
+     */
+    public void setInFlight(int pieceIndex, boolean inFlight) {
+        if (inFlight) {
+            untrack(pieceIndex);
+        } else if (positions[pieceIndex] == -1 && !completed.get(pieceIndex)) {
+            getLevel(priorities[pieceIndex]).add(pieceIndex, availability[pieceIndex]);
+        }
+    }
+
+    /**
+     * Stops tracking a piece after it has been completed so it is never picked again.
+     */
+    public void setHave(int pieceIndex) {
+        completed.set(pieceIndex);
+        untrack(pieceIndex);
+    }
+
+    private void untrack(int pieceIndex) {
+        if (positions[pieceIndex] != -1) {
+            levels[priorities[pieceIndex]].remove(pieceIndex, availability[pieceIndex]);
+            positions[pieceIndex] = -1;
+        }
+    }
+
+    private Buckets getLevel(int priority) {
+        if (levels[priority] == null) {
+            levels[priority] = new Buckets(INITIAL_BUCKET_CAPACITY);
+        }
+
+        return levels[priority];
+    }
+
+    /**
+     * Picks the rarest piece with the highest priority matching the filter. Pieces with the same availability are
+     * picked at random.
+     *
+     * @return index of the picked piece or -1 if no piece matches
+     */
+    public int pickPiece(IntPredicate filter) {
+        // priority 0 is skipped since those pieces are not wanted
+        for (int priority = levels.length - 1; priority > 0; priority--) {
+            Buckets buckets = levels[priority];
+
+            if (buckets == null || buckets.count == 0) {
+                continue;
+            }
+
+            // availability 0 is skipped since no peer has those pieces
+            for (int count = 1; count < buckets.pieces.length; count++) {
+                int size = buckets.sizes[count];
+
+                if (size == 0) {
+                    continue;
+                }
+
+                int[] bucket = buckets.pieces[count];
+                int start = random.nextInt(size);
+
+                for (int i = 0; i < size; i++) {
+                    int pieceIndex = bucket[(start + i) % size];
+
+                    if (filter.test(pieceIndex)) {
+                        return pieceIndex;
+                    }
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    // pieces of one priority grouped by availability, bucket n holds all pieces that n peers have
+    private class Buckets {
+        private int[][] pieces;
+        private int[] sizes;
+        private int count = 0;
+
+        private Buckets(int initialCapacity) {
+            pieces = new int[][] {new int[Math.max(initialCapacity, 1)]};
+            sizes = new int[1];
+        }
+
+        private void add(int pieceIndex, int availability) {
+            if (availability >= pieces.length) {
+                int newLength = Math.max(availability + 1, pieces.length * 2);
+
+                pieces = Arrays.copyOf(pieces, newLength);
+                sizes = Arrays.copyOf(sizes, newLength);
+            }
+
+            int[] bucket = pieces[availability];
+            int size = sizes[availability];
+
+            if (bucket == null) {
+                bucket = new int[INITIAL_BUCKET_CAPACITY];
+                pieces[availability] = bucket;
+            } else if (size == bucket.length) {
+                bucket = Arrays.copyOf(bucket, size * 2);
+                pieces[availability] = bucket;
+            }
+
+            bucket[size] = pieceIndex;
+            positions[pieceIndex] = size;
+            sizes[availability] = size + 1;
+            count++;
+        }
+
+        private void remove(int pieceIndex, int availability) {
+            int[] bucket = pieces[availability];
+            int position = positions[pieceIndex];
+            int last = --sizes[availability];
+
+            // swap with the last piece of the bucket
+            int lastPiece = bucket[last];
+            bucket[position] = lastPiece;
+            positions[lastPiece] = position;
+            count--;
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package vertx.bittorrent;
 
+import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.Getter;
+import lombok.Setter;
+import vertx.bittorrent.model.Peer;
+import vertx.bittorrent.utils.HashUtils;
 
 public class PieceState {
     public enum BlockState {
@@ -11,29 +18,88 @@ public class PieceState {
     }
 
     @Getter
-    private final long pieceLength;
+    private final int index;
 
     @Getter
+    private final long pieceLength;
+
     private final BlockState[] blockStates;
 
+    // number of connections that currently have a request for each block pending
+    private final int[] requestCounts;
+
+    // peer that sent each downloaded block
+    @Getter
+    private final Peer[] contributors;
+
+    // downloaded blocks that were written to disk for the resume data
+    private final boolean[] savedBlocks;
+
+    @Getter
+    private int queuedBlocksCount;
+
+    @Getter
+    private int downloadedBlocksCount = 0;
+
+    // speed class of the fastest peer downloading this piece, slower peers do not join it
+    @Getter
+    @Setter
+    private PeerSpeed speed = PeerSpeed.Medium;
+
+    private final PieceBufferPool bufferPool;
     private Buffer data;
 
-    public PieceState(long pieceLength) {
+    // blocks are hashed in order on the hashing threads as soon as all previous blocks were downloaded
+    private final MessageDigest digest = HashUtils.getSha1();
+    private Future<Void> hashing = Future.succeededFuture();
+    private Future<byte[]> hash;
+
+    // blocks before this index were hashed
+    @Getter
+    private int hashedBlocksCount = 0;
+
+    // writes of blocks that are not kept in the piece buffer
+    @Getter
+    private final List<Future<Void>> blockWrites = new ArrayList<>();
+
+    public PieceState(int index, long pieceLength, PieceBufferPool bufferPool) {
+        this.index = index;
         this.pieceLength = pieceLength;
+        this.bufferPool = bufferPool;
 
         int blocksCount = (int) ((pieceLength + ProtocolHandler.MAX_BLOCK_SIZE - 1) / ProtocolHandler.MAX_BLOCK_SIZE);
 
         blockStates = new BlockState[blocksCount];
+        requestCounts = new int[blocksCount];
+        contributors = new Peer[blocksCount];
+        savedBlocks = new boolean[blocksCount];
+        queuedBlocksCount = blocksCount;
 
         for (int i = 0; i < blocksCount; i++) {
             blockStates[i] = BlockState.Queued;
         }
     }
 
+    /**
+     * Lowers the speed class to the class of the fastest peer still downloading the piece, so slower peers may join
+     * once no peer of the class of the piece is left.
+     *
+     * @return whether the speed class was lowered
+     */
+    public boolean lowerSpeed(PeerSpeed fastestPeer) {
+        if (fastestPeer.compareTo(speed) >= 0) {
+            return false;
+        }
+
+        speed = fastestPeer;
+
+        return true;
+    }
+
     public Buffer getData() {
         if (data == null) {
-            // lazy allocation
-            data = Buffer.buffer((int) pieceLength);
+            // lazy allocation with a fixed capacity, so blocks being hashed are never moved
+            data = bufferPool.allocate((int) pieceLength);
         }
 
         return data;
@@ -43,20 +109,155 @@ public class PieceState {
         return blockStates.length;
     }
 
+    public int getBlockIndex(int offset) {
+        return offset / ProtocolHandler.MAX_BLOCK_SIZE;
+    }
+
     public BlockState getBlockState(int index) {
         return blockStates[index];
     }
 
     public BlockState getBlockStateByOffset(int offset) {
-        return blockStates[offset / ProtocolHandler.MAX_BLOCK_SIZE];
+        return blockStates[getBlockIndex(offset)];
+    }
+
+    public int getRequestCount(int index) {
+        return requestCounts[index];
+    }
+
+    public boolean hasQueuedBlocks() {
+        return queuedBlocksCount > 0;
+    }
+
+    public int nextQueuedBlock() {
+        if (queuedBlocksCount == 0) {
+            return -1;
+        }
+
+        for (int i = 0; i < blockStates.length; i++) {
+            if (blockStates[i] == BlockState.Queued) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public void requestBlock(int index) {
+        if (blockStates[index] == BlockState.Queued) {
+            blockStates[index] = BlockState.Requested;
+            queuedBlocksCount--;
+        }
+
+        requestCounts[index]++;
+    }
+
+    /**
+     * Removes a pending request for the block. The block is queued again if no other request is pending.
+     */
+    public void releaseBlock(int index) {
+        if (requestCounts[index] > 0) {
+            requestCounts[index]--;
+        }
+
+        if (requestCounts[index] == 0 && blockStates[index] == BlockState.Requested) {
+            blockStates[index] = BlockState.Queued;
+            queuedBlocksCount++;
+        }
+    }
+
+    public void completeBlock(int index, Buffer blockData, Peer peer) {
+        if (blockStates[index] == BlockState.Downloaded) {
+            return;
+        }
+
+        getData().setBuffer(getBlockOffset(index), blockData);
+
+        completeBlock(index, peer);
+    }
+
+    /**
+     * Marks the block as downloaded without keeping its data, e.g. because it was written to disk right away.
+     */
+    public void completeBlock(int index, Peer peer) {
+        if (blockStates[index] == BlockState.Downloaded) {
+            return;
+        }
+
+        if (blockStates[index] == BlockState.Queued) {
+            queuedBlocksCount--;
+        }
+
+        blockStates[index] = BlockState.Downloaded;
+        contributors[index] = peer;
+        downloadedBlocksCount++;
+    }
+
+    /**
+     * Hashes the downloaded blocks following the blocks hashed so far. Blocks received out of order stay in the piece
+     * buffer until the blocks before them arrived.
+     */
+    public void updateHash(HashingService hashingService) {
+        while (hashedBlocksCount < blockStates.length && blockStates[hashedBlocksCount] == BlockState.Downloaded) {
+            hashing = hashingService.update(
+                    hashing,
+                    digest,
+                    data.getByteBuf().nioBuffer(getBlockOffset(hashedBlocksCount), getBlockSize(hashedBlocksCount)));
+
+            hashedBlocksCount++;
+        }
+    }
+
+    /**
+     * Hashes the data of the block if all blocks before it were hashed, for blocks that are not kept in the piece
+     * buffer. The data must not change until the returned future completes.
+     *
+     * @return completes once the blocks hashed so far were hashed
+     */
+    public Future<Void> updateHash(HashingService hashingService, int blockIndex, Buffer blockData) {
+        if (blockIndex == hashedBlocksCount) {
+            hashing = hashingService.update(hashing, digest, blockData.getByteBuf().nioBuffer());
+
+            hashedBlocksCount++;
+        }
+
+        return hashing;
+    }
+
+    /**
+     * SHA-1 hash of the piece, completes once all blocks were hashed.
+     */
+    public Future<byte[]> getHash() {
+        if (hash == null) {
+            hash = hashing.map(v -> digest.digest());
+        }
+
+        return hash;
     }
 
-    public void setBlockState(int index, BlockState state) {
-        blockStates[index] = state;
+    /**
+     * Returns the piece buffer to the pool once the blocks being hashed were hashed. The data must not be used
+     * afterwards.
+     */
+    public void release() {
+        if (data != null) {
+            Buffer buffer = data;
+            data = null;
+
+            hashing.onComplete(ar -> bufferPool.release(buffer));
+        }
+    }
+
+    public boolean isBlockSaved(int index) {
+        return savedBlocks[index];
+    }
+
+    public void setBlockSaved(int index) {
+        savedBlocks[index] = true;
     }
 
-    public void setBlockStateByOffset(int offset, BlockState state) {
-        blockStates[offset / ProtocolHandler.MAX_BLOCK_SIZE] = state;
+    public void clearBlockSaved(int index) {
+        savedBlocks[index] = false;
     }
 
     public int getBlockOffset(int index) {
@@ -74,12 +275,6 @@ public class PieceState {
     }
 
     public boolean isCompleted() {
-        for (int i = 0; i < getBlocksCount(); i++) {
-            if (getBlockState(i) != BlockState.Downloaded) {
-                return false;
-            }
-        }
-
-        return true;
+        return downloadedBlocksCount == blockStates.length;
     }
 }
@@ -0,0 +1,140 @@
+package vertx.bittorrent;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import lombok.Getter;
+import vertx.bittorrent.model.Bitfield;
+
+/**
+ * Check of the pieces of one torrent on disk. Valid pieces are set in the bitfield of the torrent as soon as they are
+ * verified.
+ */
+public class RecheckJob {
+
+    @Getter
+    private final TorrentState torrentState;
+
+    // pieces that were not checked yet
+    private final Bitfield pendingPieces;
+
+    @Getter
+    private final int totalCount;
+
+    @Getter
+    private int checkedCount = 0;
+
+    @Getter
+    private int validCount = 0;
+
+    @Getter
+    private boolean cancelled = false;
+
+    private int nextIndex = 0;
+    private int runningCount = 0;
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private final Promise<Void> promise = Promise.promise();
+
+    private Handler<Integer> pieceVerifiedHandler;
+
+    RecheckJob(TorrentState torrentState, Bitfield skippedPieces) {
+        this.torrentState = torrentState;
+
+        int piecesCount = (int) torrentState.getTorrent().getPiecesCount();
+
+        pendingPieces = Bitfield.fromSize(piecesCount);
+
+        for (int i = 0; i < piecesCount; i++) {
+            if (!skippedPieces.hasPiece(i)) {
+                pendingPieces.setPiece(i);
+            }
+        }
+
+        totalCount = pendingPieces.cardinality();
+
+        if (totalCount == 0) {
+            promise.complete();
+        }
+    }
+
+    public RecheckJob onPieceVerified(Handler<Integer> handler) {
+        this.pieceVerifiedHandler = handler;
+        return this;
+    }
+
+    public Future<Void> future() {
+        return promise.future();
+    }
+
+    public boolean isPending(int pieceIndex) {
+        return pendingPieces.hasPiece(pieceIndex);
+    }
+
+    public boolean isCompleted() {
+        return promise.future().isComplete();
+    }
+
+    public double getProgress() {
+        return totalCount == 0 ? 1.0 : checkedCount / (double) totalCount;
+    }
+
+    public long getElapsedTime() {
+        return System.currentTimeMillis() - createdAt;
+    }
+
+    /**
+     * Stops checking. Pieces that were not checked stay missing.
+     */
+    public void cancel() {
+        cancelled = true;
+
+        if (runningCount == 0) {
+            promise.tryFail("Check was cancelled");
+        }
+    }
+
+    // next piece to hash or -1 if all pieces were started
+    int startNextPiece() {
+        if (cancelled) {
+            return -1;
+        }
+
+        int pieceIndex = pendingPieces.nextPiece(nextIndex);
+
+        if (pieceIndex == -1) {
+            return -1;
+        }
+
+        nextIndex = pieceIndex + 1;
+        runningCount++;
+
+        return pieceIndex;
+    }
+
+    void completePiece(int pieceIndex, boolean valid) {
+        runningCount--;
+        checkedCount++;
+
+        pendingPieces.clearPiece(pieceIndex);
+
+        if (valid && !cancelled) {
+            validCount++;
+
+            torrentState.getBitfield().setPiece(pieceIndex);
+
+            if (pieceVerifiedHandler != null) {
+                pieceVerifiedHandler.handle(pieceIndex);
+            }
+        }
+
+        if (runningCount == 0) {
+            if (cancelled) {
+                promise.tryFail("Check was cancelled");
+            } else if (checkedCount == totalCount) {
+                promise.tryComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package vertx.bittorrent;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import vertx.bittorrent.model.Bitfield;
+import vertx.bittorrent.storage.DiskScheduler;
+
+/**
+ * Checks the pieces of all torrents on disk. Torrents are checked one after another per storage device with a bounded
+ * number of pieces hashed at the same time, so torrents started together do not compete for the same disk.
+ */
+@Slf4j
+public class RecheckService {
+    public static final int DEFAULT_PARALLELISM = 2;
+
+    private final Vertx vertx;
+
+    // pieces hashed at the same time per device
+    @Getter
+    private final int parallelism;
+
+    private final Map<Object, Device> devices = new HashMap<>();
+
+    public RecheckService(Vertx vertx, int parallelism) {
+        this.vertx = vertx;
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * Queues a check of all pieces of the torrent except the skipped ones.
+     */
+    public RecheckJob submit(TorrentState torrentState, Bitfield skippedPieces) {
+        RecheckJob job = new RecheckJob(torrentState, skippedPieces);
+
+        if (job.isCompleted()) {
+            return job;
+        }
+
+        getDeviceKey(torrentState).onSuccess(key -> {
+            Device device = devices.computeIfAbsent(key, k -> new Device());
+
+            device.jobs.add(job);
+
+            log.debug(
+                    "[{}] Queued check of {} pieces on {} ({} torrents queued)",
+                    torrentState.getTorrent().getName(),
+                    job.getTotalCount(),
+                    key,
+                    device.jobs.size());
+
+            schedule(device);
+        });
+
+        return job;
+    }
+
+    public int getQueuedCount() {
+        return devices.values().stream().mapToInt(device -> device.jobs.size()).sum();
+    }
+
+    private void schedule(Device device) {
+        while (device.runningCount < parallelism && !device.jobs.isEmpty()) {
+            RecheckJob job = device.jobs.peek();
+
+            int pieceIndex = job.startNextPiece();
+
+            if (pieceIndex == -1) {
+                // remaining pieces of the job are still being hashed
+                device.jobs.poll();
+                continue;
+            }
+
+            device.runningCount++;
+
+            job.getTorrentState().checkPiece(pieceIndex).onSuccess(valid -> {
+                device.runningCount--;
+
+                job.completePiece(pieceIndex, valid);
+
+                if (job.isCompleted()) {
+                    log.debug(
+                            "[{}] Checked {} pieces ({} valid) in {}",
+                            job.getTorrentState().getTorrent().getName(),
+                            job.getCheckedCount(),
+                            job.getValidCount(),
+                            Duration.ofMillis(job.getElapsedTime()));
+                }
+
+                schedule(device);
+            });
+        }
+    }
+
+    // file store of the directory holding the files of the torrent
+    private Future<Object> getDeviceKey(TorrentState torrentState) {
+        String filePath = torrentState
+                .getStorage()
+                .getPath(torrentState.getTorrent().getFiles().get(0));
+
+        return DiskScheduler.getDevice(vertx, filePath);
+    }
+
+    private static class Device {
+        private final Deque<RecheckJob> jobs = new ArrayDeque<>();
+        private int runningCount = 0;
+    }
+}
@@ -0,0 +1,149 @@
+package vertx.bittorrent;
+
+import lombok.Getter;
+
+public class RequestPipeline {
+    public static final int DEFAULT_MIN_DEPTH = 2;
+    public static final int DEFAULT_MAX_DEPTH = 500;
+
+    private static final int INITIAL_DEPTH = 12;
+
+    // length of the interval in milliseconds over which the receive rate is measured
+    private static final long RATE_INTERVAL = 1_000;
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final double RTT_SMOOTHING = 0.125;
+    private static final double RTT_VARIANCE_SMOOTHING = 0.25;
+
+    // bounds in milliseconds for the time a peer gets to answer a request
+    private static final long INITIAL_REQUEST_TIMEOUT = 10_000;
+    private static final long MIN_REQUEST_TIMEOUT = 2_000;
+    private static final long MAX_REQUEST_TIMEOUT = 60_000;
+
+    // keep twice the bandwidth-delay product in flight but at least this many milliseconds worth of data
+    private static final double DEPTH_GAIN = 2.0;
+    private static final long MIN_QUEUE_TIME = 500;
+
+    @Getter
+    private int minDepth;
+
+    @Getter
+    private int maxDepth;
+
+    @Getter
+    private int depth = INITIAL_DEPTH;
+
+    // lowest round trip time seen, which is the closest estimate for the latency without queuing at the peer
+    @Getter
+    private long minRtt = -1;
+
+    @Getter
+    private double smoothedRtt = -1;
+
+    @Getter
+    private double rttVariance = 0.0;
+
+    // bytes per second
+    @Getter
+    private double receiveRate = 0.0;
+
+    private long intervalStart = -1;
+    private long intervalBytes = 0;
+
+    public RequestPipeline() {
+        this(DEFAULT_MIN_DEPTH, DEFAULT_MAX_DEPTH);
+    }
+
+    public RequestPipeline(int minDepth, int maxDepth) {
+        setBounds(minDepth, maxDepth);
+    }
+
+    public void setBounds(int minDepth, int maxDepth) {
+        this.minDepth = Math.max(minDepth, 1);
+        this.maxDepth = Math.max(maxDepth, this.minDepth);
+
+        depth = clamp(depth);
+    }
+
+    public void onRequestSent(long now) {
+        if (intervalStart == -1) {
+            intervalStart = now;
+        }
+    }
+
+    /**
+     * Stops measuring the receive rate while no requests are pending, so idle time does not count as slow.
+     */
+    public void onIdle() {
+        intervalStart = -1;
+        intervalBytes = 0;
+    }
+
+    /**
+     * Time in milliseconds after which a pending request is considered lost, computed like the TCP retransmission
+     * timeout. The round trip times include the time a request waits in the queue of the peer.
+     */
+    public long getRequestTimeout() {
+        if (smoothedRtt < 0) {
+            return INITIAL_REQUEST_TIMEOUT;
+        }
+
+        long timeout = (long) (smoothedRtt + 4 * rttVariance);
+
+        return Math.min(Math.max(timeout, MIN_REQUEST_TIMEOUT), MAX_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Halves the depth after requests timed out. The depth grows again with the next rate measurements.
+     */
+    public void shrink() {
+        depth = clamp(depth / 2);
+    }
+
+    public void onBlockReceived(long now, long rtt, int length) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        } else {
+            rttVariance += RTT_VARIANCE_SMOOTHING * (Math.abs(rtt - smoothedRtt) - rttVariance);
+            smoothedRtt += RTT_SMOOTHING * (rtt - smoothedRtt);
+        }
+
+        if (minRtt == -1 || rtt < minRtt) {
+            minRtt = rtt;
+        }
+
+        if (intervalStart == -1) {
+            intervalStart = now - rtt;
+        }
+
+        intervalBytes += length;
+
+        long elapsed = now - intervalStart;
+
+        if (elapsed >= RATE_INTERVAL) {
+            double rate = intervalBytes * 1000.0 / elapsed;
+
+            if (receiveRate == 0.0) {
+                receiveRate = rate;
+            } else {
+                receiveRate += RATE_SMOOTHING * (rate - receiveRate);
+            }
+
+            intervalStart = now;
+            intervalBytes = 0;
+
+            updateDepth();
+        }
+    }
+
+    private void updateDepth() {
+        long queueTime = Math.max((long) (minRtt * DEPTH_GAIN), MIN_QUEUE_TIME);
+        double bytesInFlight = receiveRate * queueTime / 1000.0;
+
+        depth = clamp((int) Math.ceil(bytesInFlight / ProtocolHandler.MAX_BLOCK_SIZE));
+    }
+
+    private int clamp(int value) {
+        return Math.min(Math.max(value, minDepth), maxDepth);
+    }
+}
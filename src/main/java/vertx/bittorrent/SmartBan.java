@@ -0,0 +1,128 @@
+package vertx.bittorrent;
+
+import io.vertx.core.buffer.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import vertx.bittorrent.model.Peer;
+import vertx.bittorrent.utils.HashUtils;
+
+/**
+ * Finds peers that sent corrupt blocks. The block hashes of pieces that failed the hash check are kept until the piece
+ * was downloaded again successfully, then every block that differs from the valid copy counts against its sender.
+ */
+@Slf4j
+public class SmartBan {
+    private final int threshold;
+
+    // blocks of pieces that failed the hash check, indexed by piece
+    private final Map<Integer, List<BlockCopy>> failedPieces = new HashMap<>();
+
+    // number of corrupt blocks per host
+    private final Map<String, Integer> strikes = new HashMap<>();
+
+    public SmartBan(int threshold) {
+        this.threshold = Math.max(threshold, 1);
+    }
+
+    public int getStrikes(Peer peer) {
+        return strikes.getOrDefault(getHost(peer), 0);
+    }
+
+    /**
+     * @return peers that reached the threshold with this piece
+     */
+    public List<Peer> onPieceFailed(Piece piece) {
+        Peer[] contributors = piece.getContributors();
+
+        Set<Peer> senders = new HashSet<>();
+        for (var peer : contributors) {
+            if (peer != null) {
+                senders.add(peer);
+            }
+        }
+
+        if (senders.size() == 1) {
+            // a single peer sent the whole piece
+            Peer peer = senders.iterator().next();
+
+            return addStrike(peer) ? List.of(peer) : List.of();
+        }
+
+        if (piece.getData() == null) {
+            // blocks were not kept in memory, so they can't be compared with the valid copy
+            return List.of();
+        }
+
+        List<BlockCopy> copies = failedPieces.computeIfAbsent(piece.getIndex(), index -> new ArrayList<>());
+
+        for (int i = 0; i < contributors.length; i++) {
+            if (contributors[i] != null) {
+                copies.add(new BlockCopy(i, hashBlock(piece.getData(), i), contributors[i]));
+            }
+        }
+
+        return List.of();
+    }
+
+    /**
+     * @return peers that reached the threshold with this piece
+     */
+    public List<Peer> onPieceVerified(Piece piece) {
+        List<BlockCopy> copies = failedPieces.remove(piece.getIndex());
+
+        if (copies == null || piece.getData() == null) {
+            return List.of();
+        }
+
+        List<Peer> bannedPeers = new ArrayList<>();
+        Map<Integer, byte[]> validHashes = new HashMap<>();
+
+        for (var copy : copies) {
+            byte[] validHash = validHashes.computeIfAbsent(copy.getBlockIndex(), i -> hashBlock(piece.getData(), i));
+
+            if (!HashUtils.isEqual(validHash, copy.getHash())) {
+                log.debug(
+                        "Peer {} sent corrupt block {} of piece {}",
+                        copy.getPeer(),
+                        copy.getBlockIndex(),
+                        piece.getIndex());
+
+                if (addStrike(copy.getPeer()) && !bannedPeers.contains(copy.getPeer())) {
+                    bannedPeers.add(copy.getPeer());
+                }
+            }
+        }
+
+        return bannedPeers;
+    }
+
+    private boolean addStrike(Peer peer) {
+        return strikes.merge(getHost(peer), 1, Integer::sum) >= threshold;
+    }
+
+    private static String getHost(Peer peer) {
+        return peer.getAddress().hostAddress();
+    }
+
+    private static byte[] hashBlock(Buffer data, int blockIndex) {
+        int start = blockIndex * ProtocolHandler.MAX_BLOCK_SIZE;
+        int end = Math.min(start + ProtocolHandler.MAX_BLOCK_SIZE, data.length());
+
+        return HashUtils.sha1(data.getBytes(start, end));
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class BlockCopy {
+        private final int blockIndex;
+        private final byte[] hash;
+        private final Peer peer;
+    }
+}
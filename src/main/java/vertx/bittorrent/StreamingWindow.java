@@ -0,0 +1,94 @@
+package vertx.bittorrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import lombok.Getter;
+import vertx.bittorrent.model.Bitfield;
+import vertx.bittorrent.model.Torrent;
+
+@Getter
+public class StreamingWindow {
+    public static final long DEFAULT_BYTES_PER_SECOND = 1024 * 1024;
+
+    // time in milliseconds until the piece at the playback position is needed
+    private static final long INITIAL_DEADLINE = 2_000;
+
+    // time in milliseconds before a deadline at which blocks of the piece are requested from faster peers
+    private static final long DEADLINE_MARGIN = 1_000;
+
+    private final Torrent torrent;
+
+    // byte range to stream, end is exclusive
+    private final long position;
+    private final long end;
+
+    // expected playback rate used to derive the deadlines
+    private final long bytesPerSecond;
+
+    private final long createdAt;
+
+    public StreamingWindow(Torrent torrent, long position, long end, long bytesPerSecond) {
+        if (position < 0 || position >= torrent.getLength()) {
+            throw new IndexOutOfBoundsException("position " + position + " must be < " + torrent.getLength());
+        }
+
+        this.torrent = torrent;
+        this.position = position;
+        this.end = Math.min(Math.max(end, position + 1), torrent.getLength());
+        this.bytesPerSecond = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_BYTES_PER_SECOND;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public int getFirstPiece() {
+        return (int) (position / torrent.getPieceLength());
+    }
+
+    public int getLastPiece() {
+        return (int) ((end - 1) / torrent.getPieceLength());
+    }
+
+    public boolean contains(int pieceIndex) {
+        return pieceIndex >= getFirstPiece() && pieceIndex <= getLastPiece();
+    }
+
+    /**
+     * Missing pieces in order starting at the first missing piece of the range, so the window advances as pieces are
+     * completed.
+     *
+     * @param maxPieces size of the window
+     * @param filter pieces that can be downloaded
+     */
+    public List<Integer> getMissingPieces(Bitfield bitfield, int maxPieces, IntPredicate filter) {
+        List<Integer> pieces = new ArrayList<>();
+
+        int lastPiece = getLastPiece();
+
+        for (int i = bitfield.nextMissingPiece(getFirstPiece());
+                i <= lastPiece && pieces.size() < maxPieces;
+                i = bitfield.nextMissingPiece(i + 1)) {
+            if (filter.test(i)) {
+                pieces.add(i);
+            }
+        }
+
+        return pieces;
+    }
+
+    /**
+     * Point in time (in milliseconds since epoch) at which the piece is needed for playback.
+     */
+    public long getDeadline(int pieceIndex) {
+        long pieceStart = pieceIndex * torrent.getPieceLength();
+        long bytesAhead = Math.max(pieceStart - position, 0);
+
+        return createdAt + INITIAL_DEADLINE + bytesAhead * 1000 / bytesPerSecond;
+    }
+
+    /**
+     * Whether the piece is needed soon, so its blocks should be requested again from faster peers.
+     */
+    public boolean isDeadlineAtRisk(int pieceIndex, long now) {
+        return getDeadline(pieceIndex) - now <= DEADLINE_MARGIN;
+    }
+}
@@ -2,28 +2,55 @@ package vertx.bittorrent;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetClientOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.IntStream;
+import java.util.TreeMap;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import vertx.bittorrent.PieceState.BlockState;
 import vertx.bittorrent.dht.DHTClient;
+import vertx.bittorrent.messages.PieceMessage;
+import vertx.bittorrent.messages.RequestMessage;
+import vertx.bittorrent.model.Bitfield;
 import vertx.bittorrent.model.ClientOptions;
+import vertx.bittorrent.model.FilePriority;
+import vertx.bittorrent.model.HashKey;
 import vertx.bittorrent.model.Peer;
+import vertx.bittorrent.model.ResumeData;
 import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.storage.AllocationMode;
+import vertx.bittorrent.storage.AsyncFileStorage;
+import vertx.bittorrent.storage.MappedFileStorage;
+import vertx.bittorrent.storage.PartFileStorage;
+import vertx.bittorrent.storage.ScheduledStorage;
+import vertx.bittorrent.storage.StorageBackend;
 import vertx.bittorrent.utils.ByteFormat;
 import vertx.bittorrent.utils.HashUtils;
-import vertx.bittorrent.utils.RandomUtils;
 
 @Slf4j
 public class TorrentController {
 
+    // peers that download a whole piece within this time in milliseconds are fast
+    private static final long FAST_PIECE_TIME = 2_000;
+
+    // peers that need longer than this time in milliseconds for a block are slow
+    private static final long SLOW_BLOCK_TIME = 1_000;
+
     private final Vertx vertx;
 
     private final ClientOptions clientOptions;
@@ -32,8 +59,20 @@ public class TorrentController {
     @Getter
     private TorrentState torrentState;
 
+    private HashKey infoHash;
+
+    // bytes of duplicate blocks received in end game or for streaming deadlines
+    @Getter
+    private long wastedBytes = 0;
+
+    private PiecePicker piecePicker;
+    private ActivePieces activePieces;
+    private SmartBan smartBan;
+
     private final List<PeerConnection> connections = new ArrayList<>();
-    private final Set<Integer> processingPieces = new HashSet<>();
+
+    // connections ordered by their receive rate, ranked once per second
+    private final List<PeerConnection> rankedConnections = new ArrayList<>();
     private final Set<Peer> connectingPeers = new HashSet<>();
 
     private ClientState clientState;
@@ -51,9 +90,23 @@ public class TorrentController {
     private long optimisticUnchokeTimerId = -1;
 
     private long connectTimerId = -1;
+    private long resumeTimerId = -1;
+
+    private AllocationMode allocationMode;
+    private Future<Void> allocation;
+    private RecheckJob recheckJob;
+
+    // resume data is only saved after the pieces on disk were checked
+    private boolean piecesChecked = false;
+    private Future<Void> resumeDataSave;
 
     private boolean enteredEndGame = false;
 
+    // whether blocks were not requested because the disk or hashing could not keep up
+    private boolean requestsHeldBack = false;
+
+    private StreamingWindow streamingWindow;
+
     private List<Peer> connectionQueue = new ArrayList<>();
 
     public TorrentController(Vertx vertx, ClientState clientState, ClientOptions clientOptions, DHTClient client) {
@@ -65,13 +118,34 @@ public class TorrentController {
 
     public void start(Torrent torrent) {
         // torrentState = new TorrentState(vertx, torrent, clientOptions.getDataDir());
-        torrentState = new TorrentState(vertx, torrent, ".");
+        torrentState = new TorrentState(vertx, torrent, createStorage(torrent, "."));
+        infoHash = new HashKey(torrent.getInfoHash());
+
+        torrentState
+                .setWriteCacheSize(clientOptions.getWriteCacheSize() * 1024L * 1024L)
+                .setWriteCacheAge(clientOptions.getWriteCacheAge() * 1000L);
+        piecePicker = new PiecePicker((int) torrent.getPiecesCount());
+        activePieces = new ActivePieces((int) torrent.getPiecesCount(), clientState.getPieceBufferPool(), piecePicker);
+        smartBan = new SmartBan(clientOptions.getBanThreshold());
+        allocationMode = AllocationMode.fromName(clientOptions.getAllocation());
+
+        for (int fileIndex : clientOptions.getSkippedFiles()) {
+            torrentState.setFilePriority(fileIndex, FilePriority.SKIP);
+        }
+
+        for (int i = 0; i < torrent.getPiecesCount(); i++) {
+            piecePicker.setPriority(i, torrentState.getPiecePriority(i).getValue());
+        }
+
+        if (clientOptions.isSequential()) {
+            setStreamingPosition(0);
+        }
 
         tracker = new Tracker(vertx, clientState, torrentState);
 
         tracker.onPeersReceived(peers -> {
             for (Peer peer : peers) {
-                if (!isConnectedToPeer(peer) && !connectionQueue.contains(peer)) {
+                if (!isConnectedToPeer(peer) && !connectionQueue.contains(peer) && !clientState.isBanned(peer)) {
                     connectionQueue.add(peer);
                 }
             }
@@ -81,41 +155,42 @@ public class TorrentController {
 
         netClient = vertx.createNetClient(new NetClientOptions().setConnectTimeout(5_000));
 
-        torrentState.checkPiecesOnDisk().onSuccess(server -> {
-            tracker.announce();
-
-            vertx.setPeriodic(0, 300_000, id -> {
-                if (dhtClient != null) {
-
-                    dhtClient.lookupTorrent(torrentState.getTorrent().getInfoHash(), peers -> {
-                        for (Peer peer : peers) {
-                            if (!isConnectedToPeer(peer) && !connectionQueue.contains(peer)) {
-                                connectionQueue.add(peer);
-                            }
-                        }
-
-                        connectToPeers();
-                    });
-                }
-            });
-        });
+        loadResumeData()
+                .compose(resumeData -> torrentState
+                        .applyResumeData(resumeData)
+                        .compose(unchangedPieces ->
+                                restorePartialPieces(resumeData, unchangedPieces).map(unchangedPieces)))
+                // files are allocated before any piece is written so zeros never overwrite pieces
+                .compose(unchangedPieces -> allocateFiles().map(unchangedPieces))
+                .onSuccess(this::startChecking);
 
         timerId = vertx.setPeriodic(1_000, id -> {
+            rankConnections();
+            checkRequestTimeouts();
+            checkStreamingDeadlines();
+            updatePieceSpeeds();
+            resumeRequests();
+
             double totalDownloadRate = 0.0;
             double totalUploadRate = 0.0;
 
             for (var connection : connections) {
                 int deltaBytes = connection.getBytesDownloaded() - connection.getPreviousBytesDownloaded();
                 int deltaBytesUploaded = connection.getBytesUploaded() - connection.getPreviousBytesUploaded();
+                int deltaBytesWasted = connection.getBytesWasted() - connection.getPreviousBytesWasted();
 
                 clientState.addTotalBytesDownloaded(deltaBytes);
                 clientState.addTotalBytesUploaded(deltaBytesUploaded);
+                clientState.addTotalBytesWasted(deltaBytesWasted);
+
+                wastedBytes += deltaBytesWasted;
 
                 totalDownloadRate += deltaBytes;
                 totalUploadRate += deltaBytesUploaded;
 
                 connection.setPreviousBytesDownloaded(connection.getBytesDownloaded());
                 connection.setPreviousBytesUploaded(connection.getBytesUploaded());
+                connection.setPreviousBytesWasted(connection.getBytesWasted());
             }
 
             long completedBytes = torrentState.getCompletedBytes();
@@ -128,7 +203,7 @@ public class TorrentController {
             long leeching = getLeechingPeersCount();
             log.info(
                     "[{}] {}% ({} / {}) (↓ {}/s | ↑ {}/s) ({} connected peers, {} seeding, {} leeching) ({}"
-                            + " downloaded, {} uploaded)",
+                            + " downloaded, {} uploaded, {} wasted)",
                     torrentState.getTorrent().getName(),
                     progress,
                     ByteFormat.format(completedBytes),
@@ -139,7 +214,47 @@ public class TorrentController {
                     seeding,
                     leeching,
                     ByteFormat.format(clientState.getTotalBytesDownloaded()),
-                    ByteFormat.format(clientState.getTotalBytesUploaded()));
+                    ByteFormat.format(clientState.getTotalBytesUploaded()),
+                    ByteFormat.format(wastedBytes));
+
+            if (allocation != null && !allocation.isComplete()) {
+                log.info(
+                        "[{}] Allocating files {} / {}",
+                        torrentState.getTorrent().getName(),
+                        ByteFormat.format(torrentState.getAllocatedBytes()),
+                        ByteFormat.format(torrentState.getBytesToAllocate()));
+            }
+
+            if (recheckJob != null && !recheckJob.isCompleted()) {
+                log.info(
+                        "[{}] Checking pieces {}% ({} / {})",
+                        torrentState.getTorrent().getName(),
+                        String.format("%.02f", recheckJob.getProgress() * 100.0),
+                        recheckJob.getCheckedCount(),
+                        recheckJob.getTotalCount());
+            }
+
+            HashingService hashingService = clientState.getHashingService();
+
+            if (hashingService.getQueuedCount() > 0) {
+                log.debug(
+                        "Hashing {} blocks ({} / {})",
+                        hashingService.getQueuedCount(),
+                        ByteFormat.format(hashingService.getQueuedBytes()),
+                        ByteFormat.format(hashingService.getMaxQueuedBytes()));
+            }
+
+            BlockCache blockCache = clientState.getBlockCache();
+
+            if (blockCache.isEnabled()) {
+                log.debug(
+                        "Read cache {} / {} ({} hits, {} misses, {} evictions)",
+                        ByteFormat.format(blockCache.getSize()),
+                        ByteFormat.format(blockCache.getCapacity()),
+                        blockCache.getHits(),
+                        blockCache.getMisses(),
+                        blockCache.getEvictions());
+            }
         });
 
         unchokeTimerId = vertx.setPeriodic(10_000, id -> {
@@ -194,6 +309,83 @@ public class TorrentController {
         });
     }
 
+    private Future<Void> allocateFiles() {
+        long start = System.currentTimeMillis();
+
+        allocation = torrentState
+                .allocateFiles(allocationMode)
+                .onSuccess(v -> log.debug(
+                        "[{}] Allocating files took {}",
+                        torrentState.getTorrent().getName(),
+                        Duration.ofMillis(System.currentTimeMillis() - start)))
+                .onFailure(ex -> log.error("Could not allocate files", ex));
+
+        // pieces are still written if the files could not be allocated
+        return allocation.otherwiseEmpty();
+    }
+
+    // pieces from the resume data are available right away and all other pieces as soon as they are verified
+    private void startChecking(Bitfield unchangedPieces) {
+        Bitfield bitfield = torrentState.getBitfield();
+
+        for (int i = bitfield.nextPiece(0); i >= 0; i = bitfield.nextPiece(i + 1)) {
+            piecePicker.setHave(i);
+        }
+
+        recheckJob = clientState
+                .getRecheckService()
+                .submit(torrentState, unchangedPieces)
+                .onPieceVerified(pieceIndex -> {
+                    piecePicker.setHave(pieceIndex);
+
+                    for (var conn : connections) {
+                        conn.have(pieceIndex);
+                    }
+                });
+
+        recheckJob.future().onSuccess(v -> onPiecesChecked());
+
+        tracker.announce();
+
+        vertx.setPeriodic(0, 300_000, id -> {
+            if (dhtClient != null) {
+
+                dhtClient.lookupTorrent(torrentState.getTorrent().getInfoHash(), peers -> {
+                    for (Peer peer : peers) {
+                        if (!isConnectedToPeer(peer)
+                                && !connectionQueue.contains(peer)
+                                && !clientState.isBanned(peer)) {
+                            connectionQueue.add(peer);
+                        }
+                    }
+
+                    connectToPeers();
+                });
+            }
+        });
+    }
+
+    private void onPiecesChecked() {
+        piecesChecked = true;
+
+        if (clientOptions.getResumeInterval() > 0) {
+            resumeTimerId = vertx.setPeriodic(clientOptions.getResumeInterval() * 1000L, id -> {
+                if (resumeDataSave == null) {
+                    saveResumeData();
+                }
+            });
+        }
+
+        // pieces that turned out to be missing can be downloaded now
+        for (var connection : connections) {
+            if (!connection.isInterested() && hasRequiredPieces(connection)) {
+                connection.interested();
+            }
+
+            requestBlocks(connection);
+        }
+    }
+
     public Future<Void> close() {
         log.info("Shutting down TorrentController");
 
@@ -201,11 +393,278 @@ public class TorrentController {
         vertx.cancelTimer(unchokeTimerId);
         vertx.cancelTimer(optimisticUnchokeTimerId);
         vertx.cancelTimer(connectTimerId);
+        vertx.cancelTimer(resumeTimerId);
 
-        return Future.join(netClient.close(), torrentState.close(), tracker.close())
+        if (recheckJob != null) {
+            recheckJob.cancel();
+        }
+
+        removeCachedBlocks();
+
+        // pieces in the write cache are written first so they are part of the resume data
+        return torrentState
+                .flushWrites()
+                .transform(ar -> saveResumeData())
+                .onComplete(ar -> activePieces.getPieces().forEach(PieceState::release))
+                .transform(ar -> Future.join(netClient.close(), torrentState.close(), tracker.close()))
                 .mapEmpty();
     }
 
+    // the cache is shared by all torrents, so blocks of a closed torrent would only take up space
+    private void removeCachedBlocks() {
+        BlockCache blockCache = clientState.getBlockCache();
+
+        if (!blockCache.isEnabled()) {
+            return;
+        }
+
+        Bitfield bitfield = torrentState.getBitfield();
+
+        for (int i = bitfield.nextPiece(0); i >= 0; i = bitfield.nextPiece(i + 1)) {
+            blockCache.removePiece(infoHash, i, (int) torrentState.getTorrent().getLengthForPiece(i));
+        }
+    }
+
+    private String getResumeDataPath() {
+        String fileName = torrentState.getTorrent().getHexEncodedInfoHash() + ".resume";
+
+        return Paths.get(clientOptions.getResumeDir(), fileName).toString();
+    }
+
+    // completes with null if there is no resume data matching the torrent
+    private Future<ResumeData> loadResumeData() {
+        Torrent torrent = torrentState.getTorrent();
+        String path = getResumeDataPath();
+
+        return vertx.fileSystem()
+                .readFile(path)
+                .map(ResumeData::fromBuffer)
+                .compose(resumeData -> {
+                    if (!Arrays.equals(resumeData.getInfoHash(), torrent.getInfoHash())
+                            || resumeData.getFileSizes().length != torrent.getFiles().size()
+                            || resumeData.getBitfield().getByteCount() != torrentState.getBitfield().getByteCount()) {
+                        return Future.failedFuture("Resume data does not match torrent");
+                    }
+
+                    return Future.succeededFuture(resumeData);
+                })
+                .onSuccess(resumeData -> log.debug("Loaded resume data from {}", path))
+                .onFailure(ex -> log.debug("No resume data loaded from {}: {}", path, ex.getMessage()))
+                .otherwiseEmpty();
+    }
+
+    /**
+     * Writes the downloaded blocks of incomplete pieces to disk and saves which pieces and blocks are available.
+     */
+    private Future<Void> saveResumeData() {
+        if (!piecesChecked) {
+            return Future.succeededFuture();
+        }
+
+        if (resumeDataSave != null) {
+            // pieces may have completed since the running save captured its state
+            return resumeDataSave.transform(ar -> saveResumeData());
+        }
+
+        Map<Integer, Bitfield> partialPieces = new TreeMap<>();
+
+        List<Future<Void>> futures = new ArrayList<>();
+
+        for (PieceState pieceState : activePieces.getPieces()) {
+            if (pieceState.getDownloadedBlocksCount() == 0) {
+                continue;
+            }
+
+            Bitfield blocks = Bitfield.fromSize(pieceState.getBlocksCount());
+
+            List<Future<Void>> writes = new ArrayList<>();
+
+            for (int i = 0; i < pieceState.getBlocksCount(); i++) {
+                if (pieceState.getBlockState(i) != BlockState.Downloaded) {
+                    continue;
+                }
+
+                if (clientOptions.isLowMemory() && !pieceState.isBlockSaved(i)) {
+                    // block is still being written
+                    continue;
+                }
+
+                blocks.setPiece(i);
+
+                if (!pieceState.isBlockSaved(i)) {
+                    int blockIndex = i;
+                    int offset = pieceState.getBlockOffset(i);
+                    // copied since the piece buffer is reused once the piece was completed and written
+                    Buffer data = pieceState.getData().getBuffer(offset, offset + pieceState.getBlockSize(i));
+
+                    writes.add(torrentState
+                            .getStorage()
+                            .writeBlock(pieceState.getIndex(), offset, data, true)
+                            .onSuccess(v -> pieceState.setBlockSaved(blockIndex)));
+                }
+            }
+
+            futures.add(Future.all(writes)
+                    .onSuccess(v -> partialPieces.put(pieceState.getIndex(), blocks))
+                    .mapEmpty());
+        }
+
+        FileSystem fs = vertx.fileSystem();
+
+        String path = getResumeDataPath();
+        String tempPath = path + ".tmp";
+
+        resumeDataSave = Future.join(futures)
+                // pieces that could not be written are left out
+                .otherwiseEmpty()
+                .compose(v -> torrentState.createResumeData(partialPieces))
+                .compose(resumeData -> fs.mkdirs(clientOptions.getResumeDir())
+                        .compose(v -> fs.writeFile(tempPath, resumeData.toBuffer()))
+                        .compose(v -> fs.move(tempPath, path, new CopyOptions().setReplaceExisting(true))))
+                .onSuccess(v -> log.debug("Saved resume data to {}", path))
+                .onFailure(ex -> log.warn("Could not save resume data: {}", ex.getMessage()))
+                .onComplete(ar -> resumeDataSave = null);
+
+        return resumeDataSave;
+    }
+
+    // reads the saved blocks of incomplete pieces back from disk
+    private Future<Void> restorePartialPieces(ResumeData resumeData, Bitfield unchangedPieces) {
+        if (resumeData == null) {
+            return Future.succeededFuture();
+        }
+
+        Torrent torrent = torrentState.getTorrent();
+
+        List<Future<Buffer>> futures = new ArrayList<>();
+
+        for (var entry : resumeData.getPartialPieces().entrySet()) {
+            int pieceIndex = entry.getKey();
+            Bitfield blocks = entry.getValue();
+
+            if (pieceIndex < 0
+                    || pieceIndex >= torrent.getPiecesCount()
+                    || !unchangedPieces.hasPiece(pieceIndex)
+                    || !torrentState.isPieceWanted(pieceIndex)
+                    || torrentState.getBitfield().hasPiece(pieceIndex)) {
+                continue;
+            }
+
+            PieceState pieceState = activePieces.activate(pieceIndex, torrent.getLengthForPiece(pieceIndex));
+
+            // no peer is downloading the piece yet
+            pieceState.setSpeed(PeerSpeed.Slow);
+
+            for (int i = blocks.nextPiece(0); i >= 0 && i < pieceState.getBlocksCount(); i = blocks.nextPiece(i + 1)) {
+                if (clientOptions.isLowMemory()) {
+                    // blocks stay on disk until the piece is hashed
+                    pieceState.completeBlock(i, null);
+                    pieceState.setBlockSaved(i);
+                    continue;
+                }
+
+                int blockIndex = i;
+
+                futures.add(torrentState
+                        .readBlock(pieceIndex, pieceState.getBlockOffset(i), pieceState.getBlockSize(i))
+                        .onSuccess(data -> {
+                            pieceState.completeBlock(blockIndex, data, null);
+                            pieceState.setBlockSaved(blockIndex);
+                            pieceState.updateHash(clientState.getHashingService());
+                        }));
+            }
+        }
+
+        log.debug("Restoring {} blocks of {} pieces", futures.size(), activePieces.getActiveCount());
+
+        // blocks that could not be read are downloaded again
+        return Future.join(futures).otherwiseEmpty().mapEmpty();
+    }
+
+    private StorageBackend createStorage(Torrent torrent, String dataDir) {
+        StorageBackend storage;
+
+        if ("mmap".equals(clientOptions.getStorage())) {
+            storage = new MappedFileStorage(
+                    vertx,
+                    torrent,
+                    dataDir,
+                    MappedFileStorage.DEFAULT_REGION_SIZE,
+                    clientOptions.getMmapWindowSize() * 1024L * 1024L);
+        } else {
+            storage = new AsyncFileStorage(vertx, torrent, dataDir, clientState.getFileHandlePool());
+        }
+
+        // boundary pieces of skipped files are kept in a hidden file next to the files of the torrent
+        String partFilePath = Paths.get(dataDir, "." + torrent.getHexEncodedInfoHash() + ".parts").toString();
+
+        storage = new PartFileStorage(vertx, torrent, storage, clientState.getHashingService(), partFilePath);
+
+        return new ScheduledStorage(vertx, torrent, storage, clientState.getDiskScheduler());
+    }
+
+    /**
+     * Downloads the pieces from the position to the end of the torrent in order before any other pieces.
+     */
+    public void setStreamingPosition(long position) {
+        // the end is limited to the length of the torrent
+        setStreamingRange(position, Long.MAX_VALUE, StreamingWindow.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Downloads the pieces of the byte range in order before any other pieces, with deadlines derived from the
+     * playback rate.
+     *
+     * @throws IllegalStateException if the torrent was not started yet
+     */
+    public void setStreamingRange(long start, long end, long bytesPerSecond) {
+        if (torrentState == null) {
+            throw new IllegalStateException("Torrent was not started yet");
+        }
+
+        streamingWindow = new StreamingWindow(torrentState.getTorrent(), start, end, bytesPerSecond);
+
+        log.info(
+                "[{}] Streaming pieces {} to {}",
+                torrentState.getTorrent().getName(),
+                streamingWindow.getFirstPiece(),
+                streamingWindow.getLastPiece());
+
+        connections.forEach(this::requestBlocks);
+    }
+
+    public void stopStreaming() {
+        streamingWindow = null;
+    }
+
+    /**
+     * Changes the priority of a file. Skipped files are not downloaded except for pieces shared with wanted files.
+     */
+    public void setFilePriority(int fileIndex, FilePriority priority) {
+        torrentState
+                .setFilePriority(fileIndex, priority)
+                .onFailure(ex -> log.warn(
+                        "[{}] Could not move data of file {}: {}",
+                        torrentState.getTorrent().getName(),
+                        fileIndex,
+                        ex.getMessage()));
+
+        int firstPiece = torrentState.getFirstPieceForFile(fileIndex);
+        int lastPiece = torrentState.getLastPieceForFile(fileIndex);
+
+        for (int i = firstPiece; i <= lastPiece; i++) {
+            piecePicker.setPriority(i, torrentState.getPiecePriority(i).getValue());
+        }
+
+        for (var connection : connections) {
+            if (!connection.isInterested() && hasRequiredPieces(connection)) {
+                connection.interested();
+            }
+
+            requestBlocks(connection);
+        }
+    }
+
     private void connectToPeers() {
         if (connectTimerId != -1) {
             return;
@@ -248,18 +707,10 @@ public class TorrentController {
         return (int) connections.stream().filter(conn -> !conn.isChoked()).count();
     }
 
-    private int getRequestedPiecesCount() {
-        return connections.stream()
-                .map(PeerConnection::getRequestedPiecesCount)
-                .reduce(Integer::sum)
-                .orElse(0);
-    }
-
     private boolean isEndGame() {
-        int missingPieces = (int) torrentState.getTorrent().getPiecesCount()
-                - torrentState.getBitfield().cardinality();
+        int missingPieces = torrentState.getMissingPiecesCount();
 
-        return getRequestedPiecesCount() + processingPieces.size() >= missingPieces;
+        return activePieces.getActiveCount() + activePieces.getProcessingCount() >= missingPieces;
     }
 
     private boolean isConnectedToPeer(Peer peer) {
@@ -272,72 +723,634 @@ public class TorrentController {
         return false;
     }
 
+    private boolean isPieceMissing(int pieceIndex) {
+        return torrentState.isPieceWanted(pieceIndex)
+                && !torrentState.getBitfield().hasPiece(pieceIndex)
+                && !activePieces.isProcessing(pieceIndex)
+                && !isPieceChecking(pieceIndex);
+    }
+
+    // piece may be on disk but was not verified yet
+    private boolean isPieceChecking(int pieceIndex) {
+        return recheckJob == null || recheckJob.isPending(pieceIndex);
+    }
+
     private boolean canRequestPiece(PeerConnection connection, int pieceIndex) {
-        return !torrentState.getBitfield().hasPiece(pieceIndex)
+        return isPieceMissing(pieceIndex)
                 && connection.getBitfield().hasPiece(pieceIndex)
-                && !isPieceRequested(pieceIndex)
-                && !isProcessingPiece(pieceIndex);
+                && !activePieces.isActive(pieceIndex);
     }
 
     private boolean hasRequiredPieces(PeerConnection connection) {
-        for (int i = 0; i < torrentState.getTorrent().getPiecesCount(); i++) {
-            if (canRequestPiece(connection, i)) {
+        for (var pieceState : activePieces.getPieces()) {
+            if (connection.getBitfield().hasPiece(pieceState.getIndex())) {
                 return true;
             }
         }
 
-        return false;
+        return piecePicker.pickPiece(index -> canRequestPiece(connection, index)) != -1;
     }
 
-    private void requestNextPieces(PeerConnection connection) {
+    private void requestBlocks(PeerConnection connection) {
         if (!connection.isInterested() || connection.isRemoteChoked()) {
             return;
         }
 
-        int numPieces = connection.getMaxRequestedPieces() - connection.getRequestedPiecesCount();
+        if (isBackpressured()) {
+            // blocks are requested again once the disk and hashing caught up
+            requestsHeldBack = true;
+            return;
+        }
 
-        for (int i = 0; i < numPieces; i++) {
-            IntStream.range(0, (int) torrentState.getTorrent().getPiecesCount())
-                    .filter(index -> canRequestPiece(connection, index))
-                    .reduce(RandomUtils::reservoirSample)
-                    .ifPresent(pieceIndex -> {
-                        log.debug("Requesting piece {} from peer {}", pieceIndex, connection.getPeer());
-                        connection.requestPiece(pieceIndex);
-                    });
+        while (connection.getAvailableRequestSlots() > 0) {
+            PieceState pieceState = nextPieceToRequest(connection);
+
+            if (pieceState == null) {
+                break;
+            }
+
+            int blockIndex;
+            while (connection.getAvailableRequestSlots() > 0 && (blockIndex = pieceState.nextQueuedBlock()) != -1) {
+                requestBlock(connection, pieceState, blockIndex);
+            }
+        }
+
+        if (connection.getAvailableRequestSlots() > 0 && isEndGame()) {
+            requestEndGameBlocks(connection);
         }
     }
 
-    private void enterEndGame() {
-        if (enteredEndGame) {
-            return;
+    private boolean isBackpressured() {
+        return clientState.getDiskScheduler().isCongested()
+                || clientState.getHashingService().isSaturated()
+                || torrentState.isWriteCacheFull();
+    }
+
+    // requests blocks that were held back while the disk or hashing could not keep up
+    private void resumeRequests() {
+        if (requestsHeldBack && !isBackpressured()) {
+            requestsHeldBack = false;
+
+            connections.forEach(this::requestBlocks);
         }
+    }
+
+    private PieceState nextPieceToRequest(PeerConnection connection) {
+        if (streamingWindow != null) {
+            PieceState pieceState = nextStreamingPiece(connection);
+
+            if (pieceState != null) {
+                return pieceState;
+            }
+        }
+
+        PeerSpeed speed = getPeerSpeed(connection);
+
+        // finish pieces that were already started before starting new ones
+        PieceState partialPiece = nextPartialPiece(connection, speed);
 
-        enteredEndGame = true;
+        if (partialPiece != null) {
+            if (speed.compareTo(partialPiece.getSpeed()) > 0) {
+                partialPiece.setSpeed(speed);
+            }
+
+            return partialPiece;
+        }
+
+        int pieceIndex = piecePicker.pickPiece(index -> canRequestPiece(connection, index));
+
+        if (pieceIndex == -1) {
+            return null;
+        }
 
-        log.info("Entering end game");
+        log.debug("Starting piece {} with {} peer {}", pieceIndex, speed, connection.getPeer());
 
-        IntStream.range(0, (int) torrentState.getTorrent().getPiecesCount())
-                .filter(index -> !torrentState.getBitfield().hasPiece(index))
-                .forEach(index -> connections.stream()
-                        .filter(conn -> conn.getBitfield().hasPiece(index))
-                        .sorted(Comparator.comparingDouble(PeerConnection::getAverageDownloadRate)
-                                .reversed())
-                        .limit(10)
-                        .forEach(conn -> conn.requestPiece(index)));
+        PieceState pieceState =
+                activePieces.activate(pieceIndex, torrentState.getTorrent().getLengthForPiece(pieceIndex));
+        pieceState.setSpeed(speed);
+
+        return pieceState;
     }
 
-    private boolean isProcessingPiece(int pieceIndex) {
-        return processingPieces.contains(pieceIndex);
+    private PieceState nextPartialPiece(PeerConnection connection, PeerSpeed speed) {
+        PieceState bestPiece = null;
+
+        for (var pieceState : activePieces.getPieces()) {
+            if (!pieceState.hasQueuedBlocks()
+                    || !connection.getBitfield().hasPiece(pieceState.getIndex())
+                    || speed.compareTo(pieceState.getSpeed()) < 0) {
+                continue;
+            }
+
+            // keep downloading whole pieces from the same peer
+            if (pieceState.getIndex() == connection.getLastRequestedPiece()) {
+                return pieceState;
+            }
+
+            // otherwise prefer the piece which is closest to completion
+            if (bestPiece == null || pieceState.getQueuedBlocksCount() < bestPiece.getQueuedBlocksCount()) {
+                bestPiece = pieceState;
+            }
+        }
+
+        return bestPiece;
     }
 
-    private boolean isPieceRequested(int pieceIndex) {
+    private PeerSpeed getPeerSpeed(PeerConnection connection) {
+        if (connection.isSnubbed()) {
+            return PeerSpeed.Slow;
+        }
+
+        double rate = connection.getRequestPipeline().getReceiveRate();
+
+        if (rate == 0.0) {
+            // not measured yet
+            return PeerSpeed.Medium;
+        }
+
+        if (rate * FAST_PIECE_TIME / 1000.0 >= torrentState.getTorrent().getPieceLength()) {
+            return PeerSpeed.Fast;
+        }
+
+        if (rate * SLOW_BLOCK_TIME / 1000.0 < ProtocolHandler.MAX_BLOCK_SIZE) {
+            return PeerSpeed.Slow;
+        }
+
+        return PeerSpeed.Medium;
+    }
+
+    /**
+     * Lowers the speed class of each piece to the class of the fastest peer still downloading it, so slower peers can
+     * finish pieces whose faster peers slowed down or stopped requesting them.
+     */
+    private void updatePieceSpeeds() {
+        Map<Integer, PeerSpeed> fastestPeers = new HashMap<>();
+
         for (var connection : connections) {
-            if (connection.isPieceRequested(pieceIndex)) {
-                return true;
+            PeerSpeed speed = getPeerSpeed(connection);
+
+            for (var request : connection.getPendingRequests()) {
+                fastestPeers.merge(request.getPieceIndex(), speed, (a, b) -> a.compareTo(b) >= 0 ? a : b);
             }
         }
 
-        return false;
+        boolean lowered = false;
+
+        for (var pieceState : activePieces.getPieces()) {
+            lowered |= pieceState.lowerSpeed(fastestPeers.getOrDefault(pieceState.getIndex(), PeerSpeed.Slow));
+        }
+
+        if (lowered) {
+            connections.forEach(this::requestBlocks);
+        }
+    }
+
+    private List<Integer> getStreamingPieces() {
+        return streamingWindow.getMissingPieces(
+                torrentState.getBitfield(),
+                clientOptions.getStreamingWindow(),
+                i -> torrentState.isPieceWanted(i) && !isPieceChecking(i));
+    }
+
+    private PieceState nextStreamingPiece(PeerConnection connection) {
+        // pieces in the window are downloaded in order
+        for (int pieceIndex : getStreamingPieces()) {
+            if (activePieces.isProcessing(pieceIndex) || !connection.getBitfield().hasPiece(pieceIndex)) {
+                continue;
+            }
+
+            PieceState pieceState = activePieces.get(pieceIndex);
+
+            if (pieceState == null) {
+                return activePieces.activate(pieceIndex, torrentState.getTorrent().getLengthForPiece(pieceIndex));
+            }
+
+            if (pieceState.hasQueuedBlocks()) {
+                return pieceState;
+            }
+        }
+
+        return null;
+    }
+
+    private void checkRequestTimeouts() {
+        long now = System.currentTimeMillis();
+        boolean released = false;
+
+        for (var connection : connections) {
+            List<BlockRequest> timedOut = connection.cancelTimedOutRequests(now);
+
+            if (!timedOut.isEmpty()) {
+                log.debug("Peer {} is snubbed, releasing {} blocks", connection.getPeer(), timedOut.size());
+
+                releaseBlocks(timedOut);
+                released = true;
+            }
+        }
+
+        // released blocks are queued again for the other peers
+        if (released) {
+            for (var connection : connections) {
+                if (!connection.isSnubbed()) {
+                    requestBlocks(connection);
+                }
+            }
+        }
+    }
+
+    private void checkStreamingDeadlines() {
+        if (streamingWindow == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (int pieceIndex : getStreamingPieces()) {
+            PieceState pieceState = activePieces.get(pieceIndex);
+
+            if (pieceState == null || !streamingWindow.isDeadlineAtRisk(pieceIndex, now)) {
+                continue;
+            }
+
+            // deadline is at risk, request blocks again from the fastest peers
+            List<PeerConnection> candidates = getFastestPeers(pieceIndex);
+
+            for (int i = 0; i < pieceState.getBlocksCount(); i++) {
+                if (pieceState.getBlockState(i) != BlockState.Requested || pieceState.getRequestCount(i) > 1) {
+                    continue;
+                }
+
+                int begin = pieceState.getBlockOffset(i);
+
+                // only peers faster than the one the block was requested from can help
+                double ownerRate = candidates.stream()
+                        .filter(conn -> conn.isBlockRequested(pieceIndex, begin))
+                        .mapToDouble(conn -> conn.getRequestPipeline().getReceiveRate())
+                        .max()
+                        .orElse(0.0);
+
+                for (var conn : candidates) {
+                    if (conn.getRequestPipeline().getReceiveRate() <= ownerRate) {
+                        break;
+                    }
+
+                    if (conn.getAvailableRequestSlots() > 0 && !conn.isBlockRequested(pieceIndex, begin)) {
+                        log.debug("Requesting block {} of piece {} again from {}", i, pieceIndex, conn.getPeer());
+                        requestBlock(conn, pieceState, i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void rankConnections() {
+        rankedConnections.clear();
+        rankedConnections.addAll(connections);
+        rankedConnections.sort(Comparator.comparingDouble(
+                        (PeerConnection conn) -> conn.getRequestPipeline().getReceiveRate())
+                .reversed());
+    }
+
+    private boolean canAskForPiece(PeerConnection connection, int pieceIndex) {
+        return connection.isInterested()
+                && !connection.isRemoteChoked()
+                && connection.getBitfield().hasPiece(pieceIndex);
+    }
+
+    /**
+     * Peers that can be asked for the piece right now, ordered by their receive rate at the last ranking.
+     */
+    private List<PeerConnection> getFastestPeers(int pieceIndex) {
+        return rankedConnections.stream().filter(conn -> canAskForPiece(conn, pieceIndex)).toList();
+    }
+
+    /**
+     * Number of peers that can be asked for the piece and were ranked before the connection. Connections that were
+     * not ranked yet come after all others.
+     */
+    private int getFasterPeersCount(PeerConnection connection, int pieceIndex) {
+        int count = 0;
+
+        for (var conn : rankedConnections) {
+            if (conn == connection) {
+                break;
+            }
+
+            if (canAskForPiece(conn, pieceIndex)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private void requestEndGameBlocks(PeerConnection connection) {
+        if (!enteredEndGame) {
+            enteredEndGame = true;
+
+            log.info("Entering end game");
+        }
+
+        int maxRequests = Math.max(clientOptions.getEndGameRequests(), 1);
+
+        // request blocks which are already requested from other peers
+        for (var pieceState : activePieces.getPieces()) {
+            if (!connection.getBitfield().hasPiece(pieceState.getIndex())) {
+                continue;
+            }
+
+            // only the fastest peers get duplicate requests
+            if (getFasterPeersCount(connection, pieceState.getIndex()) >= maxRequests) {
+                continue;
+            }
+
+            for (int i = 0; i < pieceState.getBlocksCount(); i++) {
+                if (connection.getAvailableRequestSlots() == 0) {
+                    return;
+                }
+
+                if (pieceState.getBlockState(i) == BlockState.Requested
+                        && pieceState.getRequestCount(i) < maxRequests
+                        && !connection.isBlockRequested(pieceState.getIndex(), pieceState.getBlockOffset(i))) {
+                    requestBlock(connection, pieceState, i);
+                }
+            }
+        }
+    }
+
+    private void requestBlock(PeerConnection connection, PieceState pieceState, int blockIndex) {
+        pieceState.requestBlock(blockIndex);
+
+        connection.requestBlock(
+                pieceState.getIndex(), pieceState.getBlockOffset(blockIndex), pieceState.getBlockSize(blockIndex));
+    }
+
+    private void releaseBlocks(List<BlockRequest> requests) {
+        for (var request : requests) {
+            PieceState pieceState = activePieces.get(request.getPieceIndex());
+
+            if (pieceState != null) {
+                pieceState.releaseBlock(pieceState.getBlockIndex(request.getBegin()));
+
+                // the peer gave up the piece, so any peer may finish it
+                pieceState.setSpeed(PeerSpeed.Slow);
+            }
+        }
+    }
+
+    private void onBlockReceived(PeerConnection connection, PieceMessage message) {
+        int pieceIndex = message.getPieceIndex();
+        PieceState pieceState = activePieces.get(pieceIndex);
+
+        if (pieceState == null) {
+            // piece was already completed
+            connection.addBytesWasted(message.getData().length());
+            return;
+        }
+
+        int blockIndex = pieceState.getBlockIndex(message.getBegin());
+
+        if (pieceState.getBlockState(blockIndex) == BlockState.Downloaded) {
+            connection.addBytesWasted(message.getData().length());
+            return;
+        }
+
+        if (clientOptions.isLowMemory()) {
+            writeBlock(pieceState, blockIndex, message.getData(), connection.getPeer());
+        } else {
+            pieceState.completeBlock(blockIndex, message.getData(), connection.getPeer());
+            pieceState.updateHash(clientState.getHashingService());
+        }
+
+        pieceState.releaseBlock(blockIndex);
+
+        if (pieceState.getRequestCount(blockIndex) > 0) {
+            // block was also requested from other peers in end game
+            for (var conn : connections) {
+                if (conn != connection && conn.cancelBlock(pieceIndex, message.getBegin())) {
+                    pieceState.releaseBlock(blockIndex);
+                }
+            }
+        }
+
+        if (pieceState.isCompleted()) {
+            activePieces.remove(pieceIndex);
+
+            // not requested again while the last blocks are hashed and the piece is written
+            activePieces.setProcessing(pieceIndex, true);
+
+            hashPiece(pieceState)
+                    .onFailure(ex -> {
+                        log.error("Could not hash piece {}", pieceIndex, ex);
+                        activePieces.setProcessing(pieceIndex, false);
+                        pieceState.release();
+
+                        connections.forEach(this::requestBlocks);
+                    })
+                    .onSuccess(hash -> {
+                        resumeRequests();
+
+                        ByteBuffer pieceHash = torrentState.getTorrent().getHashForPiece(pieceIndex);
+
+                        Piece piece = Piece.builder()
+                                .index(pieceIndex)
+                                .data(clientOptions.isLowMemory() ? null : pieceState.getData())
+                                .hash(hash)
+                                .hashValid(HashUtils.isEqual(hash, pieceHash))
+                                .contributors(pieceState.getContributors())
+                                .build();
+
+                        onPieceCompleted(piece, pieceState).onComplete(ar -> pieceState.release());
+                    });
+        }
+    }
+
+    // low memory mode: the block is written to its file right away and only hashed if all blocks before it were hashed,
+    // it is flushed before being marked as saved as the resume data lists saved blocks as available
+    private void writeBlock(PieceState pieceState, int blockIndex, Buffer data, Peer peer) {
+        pieceState.completeBlock(blockIndex, peer);
+        pieceState.updateHash(clientState.getHashingService(), blockIndex, data);
+
+        pieceState
+                .getBlockWrites()
+                .add(torrentState
+                        .getStorage()
+                        .writeBlock(pieceState.getIndex(), pieceState.getBlockOffset(blockIndex), data, true)
+                        .onSuccess(v -> pieceState.setBlockSaved(blockIndex)));
+    }
+
+    private Future<byte[]> hashPiece(PieceState pieceState) {
+        if (!clientOptions.isLowMemory()) {
+            return pieceState.getHash();
+        }
+
+        HashingService hashingService = clientState.getHashingService();
+
+        Future<Void> future = Future.all(pieceState.getBlockWrites()).mapEmpty();
+
+        // blocks that were not hashed when they arrived are read back one at a time
+        for (int i = pieceState.getHashedBlocksCount(); i < pieceState.getBlocksCount(); i++) {
+            int blockIndex = i;
+
+            future = future.compose(v -> torrentState
+                    .readBlock(
+                            pieceState.getIndex(),
+                            pieceState.getBlockOffset(blockIndex),
+                            pieceState.getBlockSize(blockIndex))
+                    .compose(data -> pieceState.updateHash(hashingService, blockIndex, data)));
+        }
+
+        return future.compose(v -> pieceState.getHash());
+    }
+
+    // completes once the data of the piece is not needed anymore
+    private Future<Void> onPieceCompleted(Piece piece, PieceState pieceState) {
+        if (piece.isHashValid()) {
+            banPeers(smartBan.onPieceVerified(piece));
+
+            return torrentState
+                    .writePieceToDisk(piece)
+                    .onFailure(ex -> {
+                        log.error("Could not write piece to file", ex);
+                        activePieces.setProcessing(piece.getIndex(), false);
+
+                        connections.forEach(this::requestBlocks);
+                    })
+                    .onSuccess(v -> {
+                        activePieces.setProcessing(piece.getIndex(), false);
+
+                        resumeRequests();
+
+                        torrentState.getBitfield().setPiece(piece.getIndex());
+                        piecePicker.setHave(piece.getIndex());
+
+                        // serve other peers from memory instead of reading the piece back
+                        if (piece.getData() != null) {
+                            clientState.getBlockCache().putBlocks(infoHash, piece.getIndex(), 0, piece.getData());
+                        }
+
+                        for (var conn : connections) {
+                            conn.have(piece.getIndex());
+                        }
+
+                        if (torrentState.isTorrentComplete()) {
+                            log.info("Download completed");
+
+                            int piecesCount = (int) torrentState.getTorrent().getPiecesCount();
+
+                            // skipped files are missing so the torrent is not complete for the tracker
+                            if (torrentState.getBitfield().cardinality() == piecesCount) {
+                                tracker.completed();
+                            }
+
+                            for (var conn : connections) {
+                                conn.notInterested();
+                            }
+
+                            // vertx.cancelTimer(timerId);
+                        }
+                    })
+                    .mapEmpty();
+        } else {
+            // peer sent faulty piece
+            log.warn("Received invalid piece for index {}", piece.getIndex());
+
+            banPeers(smartBan.onPieceFailed(piece));
+
+            // the piece is only requested again once its invalid blocks on disk were overwritten
+            return torrentState
+                    .invalidateBlocks(pieceState)
+                    .onFailure(ex -> log.warn("Could not invalidate piece {}: {}", piece.getIndex(), ex.getMessage()))
+                    .onComplete(ar -> {
+                        activePieces.setProcessing(piece.getIndex(), false);
+
+                        connections.forEach(this::requestBlocks);
+                    });
+        }
+    }
+
+    private void sendBlock(PeerConnection connection, RequestMessage request) {
+        if (request.getLength() > ProtocolHandler.MAX_BLOCK_SIZE) {
+            log.warn("Ignoring request exceeding the maximum block size: {}", request);
+            return;
+        }
+
+        // data of skipped files may be in the part file, which can't be sent straight from the files
+        if (clientState.getBlockCache().isEnabled() || torrentState.overlapsSkippedFile(request.getPieceIndex())) {
+            readBlock(connection, request)
+                    .onFailure(ex -> log.warn("Could not read requested block {}: {}", request, ex.getMessage()))
+                    .onSuccess(buffer -> connection.piece(request.getPieceIndex(), request.getBegin(), buffer));
+        } else {
+            // without a cache the block is sent straight from the files, scheduled like a read for an upload
+            int pieceIndex = request.getPieceIndex();
+            int begin = request.getBegin();
+
+            torrentState
+                    .getFileSpans(pieceIndex, begin, request.getLength())
+                    .compose(spans -> torrentState
+                            .getStorage()
+                            .readDirect(
+                                    pieceIndex,
+                                    begin,
+                                    request.getLength(),
+                                    () -> connection.piece(pieceIndex, begin, spans)))
+                    .onFailure(ex -> log.warn("Could not send requested block {}: {}", request, ex.getMessage()));
+        }
+    }
+
+    private Future<Buffer> readBlock(PeerConnection connection, RequestMessage request) {
+        BlockCache blockCache = clientState.getBlockCache();
+
+        int pieceIndex = request.getPieceIndex();
+        int begin = request.getBegin();
+        int pieceLength = (int) torrentState.getTorrent().getLengthForPiece(pieceIndex);
+
+        RequestMessage previousRequest = connection.getLastUploadRequest();
+        connection.setLastUploadRequest(request);
+
+        // only whole blocks are cached
+        boolean isBlock = begin % ProtocolHandler.MAX_BLOCK_SIZE == 0
+                && request.getLength() == Math.min(ProtocolHandler.MAX_BLOCK_SIZE, pieceLength - begin);
+
+        if (!blockCache.isEnabled() || !isBlock) {
+            return torrentState.readBlock(pieceIndex, begin, request.getLength());
+        }
+
+        Buffer block = blockCache.get(infoHash, pieceIndex, begin);
+
+        if (block != null) {
+            return Future.succeededFuture(block);
+        }
+
+        if (previousRequest != null
+                && previousRequest.getPieceIndex() == pieceIndex
+                && previousRequest.getBegin() + previousRequest.getLength() == begin) {
+            // peer requests the blocks of the piece in order, read the rest of the piece at once
+            return torrentState.readBlock(pieceIndex, begin, pieceLength - begin).map(data -> {
+                blockCache.putBlocks(infoHash, pieceIndex, begin, data);
+
+                return data.getBuffer(0, request.getLength());
+            });
+        }
+
+        return torrentState
+                .readBlock(pieceIndex, begin, request.getLength())
+                .onSuccess(data -> blockCache.put(infoHash, pieceIndex, begin, data));
+    }
+
+    private void banPeers(List<Peer> peers) {
+        for (var peer : peers) {
+            clientState.banPeer(peer, clientOptions.getBanDuration() * 1000L);
+
+            connectionQueue.removeIf(clientState::isBanned);
+
+            for (var connection : List.copyOf(connections)) {
+                if (clientState.isBanned(connection.getPeer())) {
+                    connection.close();
+                }
+            }
+        }
     }
 
     private void unchokeNext() {
@@ -349,6 +1362,10 @@ public class TorrentController {
     }
 
     private Future<PeerConnection> connectToPeer(Peer peer) {
+        if (clientState.isBanned(peer)) {
+            return Future.failedFuture("Peer " + peer + " is banned");
+        }
+
         for (var connection : connections) {
             if (peer.equals(connection.getPeer())) {
                 return Future.succeededFuture(connection);
@@ -362,6 +1379,10 @@ public class TorrentController {
     private void setupPeerConnection(PeerConnection connection) {
         connections.add(connection);
 
+        connection
+                .getRequestPipeline()
+                .setBounds(clientOptions.getMinRequestQueue(), clientOptions.getMaxRequestQueue());
+
         connection.onHandshake(handshake -> {
             if (!HashUtils.isEqual(
                     handshake.getInfoHash(), torrentState.getTorrent().getInfoHash())) {
@@ -373,6 +1394,8 @@ public class TorrentController {
         });
 
         connection.onBitfield(bitfield -> {
+            piecePicker.addAvailability(bitfield);
+
             if (torrentState.isTorrentComplete()
                     && bitfield.cardinality() == torrentState.getTorrent().getPiecesCount()) {
                 // we have all pieces and they have all pieces
@@ -382,6 +1405,7 @@ public class TorrentController {
 
             if (!connection.isInterested() && hasRequiredPieces(connection)) {
                 connection.interested();
+                requestBlocks(connection);
             }
         });
 
@@ -400,82 +1424,38 @@ public class TorrentController {
         });
 
         connection.onRequest(request -> {
-            if (!connection.isChoked()) {
-                torrentState.readPieceFromDisk(request.getPieceIndex()).onSuccess(buffer -> {
-                    connection.piece(
-                            request.getPieceIndex(),
-                            request.getBegin(),
-                            buffer.slice(request.getBegin(), request.getBegin() + request.getLength()));
-                });
+            if (!connection.isChoked() && torrentState.getBitfield().hasPiece(request.getPieceIndex())) {
+                sendBlock(connection, request);
             }
         });
 
         connection.onHasPiece(i -> {
-            if (!connection.isInterested() && canRequestPiece(connection, i)) {
+            piecePicker.incrementAvailability(i);
+
+            if (!connection.isInterested() && isPieceMissing(i)) {
                 connection.interested();
+                requestBlocks(connection);
             }
         });
 
-        connection.onPieceCompleted(piece -> {
-            if (piece.isHashValid()) {
-                processingPieces.add(piece.getIndex());
-
-                torrentState
-                        .writePieceToDisk(piece)
-                        .onFailure(ex -> {
-                            log.error("Could not write piece to file", ex);
-                            processingPieces.remove(piece.getIndex());
-
-                            if (isEndGame()) {
-                                enterEndGame();
-                            } else {
-                                requestNextPieces(connection);
-                            }
-                        })
-                        .onSuccess(v -> {
-                            processingPieces.remove(piece.getIndex());
-
-                            torrentState.getBitfield().setPiece(piece.getIndex());
-
-                            for (var conn : connections) {
-                                conn.have(piece.getIndex());
-                            }
-
-                            if (isEndGame()) {
-                                connections.forEach(conn -> conn.cancelPiece(piece.getIndex()));
-                            }
-
-                            if (torrentState.isTorrentComplete()) {
-                                log.info("Download completed");
-
-                                tracker.completed();
+        connection.onBlock(message -> {
+            onBlockReceived(connection, message);
+            requestBlocks(connection);
+        });
 
-                                for (var conn : connections) {
-                                    conn.notInterested();
-                                }
-
-                                // vertx.cancelTimer(timerId);
-                            } else {
-                                if (isEndGame()) {
-                                    enterEndGame();
-                                } else {
-                                    requestNextPieces(connection);
-                                }
-                            }
-                        });
-            } else {
-                // peer sent faulty piece
-                log.warn("Received invalid piece for index {} from {}", piece.getIndex(), connection.getPeer());
-                requestNextPieces(connection);
-            }
+        connection.onChoked(v -> {
+            releaseBlocks(connection.clearPendingRequests());
         });
 
         connection.onUnchoked(v -> {
-            requestNextPieces(connection);
+            requestBlocks(connection);
         });
 
         connection.onClosed(v -> {
             connections.remove(connection);
+            rankedConnections.remove(connection);
+            piecePicker.removeAvailability(connection.getBitfield());
+            releaseBlocks(connection.clearPendingRequests());
 
             if (getLeechingPeersCount() < maxLeechingPeers) {
                 unchokeNext();
@@ -484,6 +1464,11 @@ public class TorrentController {
     }
 
     public void assignConnection(PeerConnection connection) {
+        if (clientState.isBanned(connection.getPeer())) {
+            connection.close();
+            return;
+        }
+
         connection.setTorrentState(torrentState);
         connection.handshake();
 
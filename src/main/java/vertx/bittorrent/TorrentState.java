@@ -1,39 +1,44 @@
 package vertx.bittorrent;
 
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.file.AsyncFile;
-import io.vertx.core.file.FileSystem;
-import io.vertx.core.file.OpenOptions;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import io.vertx.core.file.FileProps;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TreeMap;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import vertx.bittorrent.model.Bitfield;
 import vertx.bittorrent.model.FileInfo;
 import vertx.bittorrent.model.FilePosition;
+import vertx.bittorrent.model.FilePriority;
+import vertx.bittorrent.model.ResumeData;
 import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.storage.AllocationMode;
+import vertx.bittorrent.storage.AsyncFileStorage;
+import vertx.bittorrent.storage.FileAllocator;
+import vertx.bittorrent.storage.FileSpan;
+import vertx.bittorrent.storage.StorageBackend;
 import vertx.bittorrent.utils.HashUtils;
 
 @Slf4j
 public class TorrentState {
-    private final Map<String, AsyncFile> fileMap = new HashMap<>();
+    // maximum length of adjacent pieces merged into one write
+    private static final int MAX_MERGED_WRITE = 16 * 1024 * 1024;
+
+    private final Vertx vertx;
+
+    @Getter
+    private final StorageBackend storage;
 
     @Getter
     private final Torrent torrent;
@@ -41,29 +46,164 @@ public class TorrentState {
     @Getter
     private final Bitfield bitfield;
 
-    private final String dataDir;
+    // pieces that belong to at least one file that is not skipped
+    @Getter
+    private final Bitfield wantedPieces;
+
+    // offset of each file inside the torrent
+    private final long[] fileOffsets;
+
+    private final FilePriority[] filePriorities;
+    private final FilePriority[] piecePriorities;
+
+    // maximum bytes of verified pieces held in memory before writing them, 0 writes pieces immediately
+    @Setter
+    private long writeCacheSize = 0;
+
+    // maximum time in milliseconds a piece stays in the write cache
+    @Setter
+    private long writeCacheAge = 5_000;
+
+    // bytes of wanted files allocated on disk while allocating files
+    @Getter
+    private volatile long allocatedBytes = 0;
+
+    @Getter
+    private long bytesToAllocate = 0;
+
+    // verified pieces waiting to be written, ordered by index so adjacent pieces can be merged
+    private final TreeMap<Integer, PendingWrite> pendingWrites = new TreeMap<>();
+
+    // bytes of pieces in the write cache and of pieces being written
+    @Getter
+    private long pendingWriteBytes = 0;
+    private long flushTimerId = -1;
 
     public TorrentState(Vertx vertx, Torrent torrent, String dataDir) {
-        String directory = StringUtils.isBlank(dataDir) ? "." : dataDir;
+        this(vertx, torrent, new AsyncFileStorage(vertx, torrent, StringUtils.isBlank(dataDir) ? "." : dataDir));
+    }
 
+    public TorrentState(Vertx vertx, Torrent torrent, StorageBackend storage) {
+        this.vertx = vertx;
         this.torrent = torrent;
-        this.dataDir = directory;
+        this.storage = storage;
         this.bitfield = Bitfield.fromSize((int) torrent.getPiecesCount());
+        this.wantedPieces = Bitfield.fromSize((int) torrent.getPiecesCount());
+
+        List<FileInfo> files = torrent.getFiles();
+
+        fileOffsets = new long[files.size()];
+        filePriorities = new FilePriority[files.size()];
+        piecePriorities = new FilePriority[(int) torrent.getPiecesCount()];
+
+        long offset = 0;
+        for (int i = 0; i < files.size(); i++) {
+            fileOffsets[i] = offset;
+            filePriorities[i] = FilePriority.NORMAL;
 
-        FileSystem fs = vertx.fileSystem();
+            offset += files.get(i).getLength();
+        }
+
+        Arrays.fill(piecePriorities, FilePriority.NORMAL);
+
+        for (int i = 0; i < piecePriorities.length; i++) {
+            wantedPieces.setPiece(i);
+        }
+    }
+
+    public FilePriority getFilePriority(int fileIndex) {
+        return filePriorities[fileIndex];
+    }
+
+    public FilePriority getPiecePriority(int pieceIndex) {
+        return piecePriorities[pieceIndex];
+    }
+
+    public boolean isPieceWanted(int pieceIndex) {
+        return wantedPieces.hasPiece(pieceIndex);
+    }
+
+    /**
+     * Changes the priority of a file and of all pieces overlapping it. A piece gets the highest priority of the files
+     * it overlaps, so boundary pieces of skipped files are still downloaded if the neighbouring file is wanted.
+     */
+    public Future<Void> setFilePriority(int fileIndex, FilePriority priority) {
+        filePriorities[fileIndex] = priority;
+
+        if (torrent.getFiles().get(fileIndex).getLength() == 0) {
+            return Future.succeededFuture();
+        }
+
+        int firstPiece = getFirstPieceForFile(fileIndex);
+        int lastPiece = getLastPieceForFile(fileIndex);
+
+        for (int i = firstPiece; i <= lastPiece; i++) {
+            updatePiecePriority(i);
+        }
+
+        return storage.setFileSkipped(fileIndex, priority == FilePriority.SKIP);
+    }
 
-        for (var file : torrent.getFiles()) {
-            Path filePath = Paths.get(directory, file.getPath());
-            // Path filePath = Path.of(file.getPath());
-            Path parent = filePath.getParent();
-            if (parent != null) {
-                fs.mkdirsBlocking(parent.toString());
+    /**
+     * Whether the piece overlaps a skipped file, whose data may not be stored in the file itself.
+     */
+    public boolean overlapsSkippedFile(int pieceIndex) {
+        long pieceStart = pieceIndex * torrent.getPieceLength();
+        long pieceEnd = pieceStart + torrent.getLengthForPiece(pieceIndex);
+
+        for (int i = getFileIndexAt(pieceStart); i < fileOffsets.length && fileOffsets[i] < pieceEnd; i++) {
+            if (filePriorities[i] == FilePriority.SKIP) {
+                return true;
             }
+        }
+
+        return false;
+    }
+
+    public int getFirstPieceForFile(int fileIndex) {
+        return (int) (fileOffsets[fileIndex] / torrent.getPieceLength());
+    }
+
+    public int getLastPieceForFile(int fileIndex) {
+        long length = torrent.getFiles().get(fileIndex).getLength();
 
-            AsyncFile asyncFile = fs.openBlocking(
-                    filePath.toString(), new OpenOptions().setRead(true).setWrite(true));
+        return (int) ((fileOffsets[fileIndex] + Math.max(length, 1) - 1) / torrent.getPieceLength());
+    }
 
-            fileMap.put(file.getPath(), asyncFile);
+    private int getFileIndexAt(long offset) {
+        int index = Arrays.binarySearch(fileOffsets, offset);
+
+        if (index < 0) {
+            return -index - 2;
+        }
+
+        // skip empty files starting at the same offset
+        while (index + 1 < fileOffsets.length && fileOffsets[index + 1] == offset) {
+            index++;
+        }
+
+        return index;
+    }
+
+    private void updatePiecePriority(int pieceIndex) {
+        long pieceStart = pieceIndex * torrent.getPieceLength();
+        long pieceEnd = pieceStart + torrent.getLengthForPiece(pieceIndex);
+
+        FilePriority priority = FilePriority.SKIP;
+
+        for (int i = getFileIndexAt(pieceStart); i < fileOffsets.length && fileOffsets[i] < pieceEnd; i++) {
+            if (torrent.getFiles().get(i).getLength() > 0
+                    && filePriorities[i].getValue() > priority.getValue()) {
+                priority = filePriorities[i];
+            }
+        }
+
+        piecePriorities[pieceIndex] = priority;
+
+        if (priority == FilePriority.SKIP) {
+            wantedPieces.clearPiece(pieceIndex);
+        } else {
+            wantedPieces.setPiece(pieceIndex);
         }
     }
 
@@ -83,172 +223,357 @@ public class TorrentState {
         return torrent.getLength() - getCompletedBytes();
     }
 
-    public boolean isTorrentComplete() {
-        return bitfield.cardinality() == torrent.getPiecesCount();
-    }
+    public int getMissingPiecesCount() {
+        int count = 0;
 
-    public Future<Void> close() {
-        return Future.all(fileMap.values().stream().map(AsyncFile::close).toList())
-                .mapEmpty();
-    }
+        for (int i = wantedPieces.nextPiece(0); i >= 0; i = wantedPieces.nextPiece(i + 1)) {
+            if (!bitfield.hasPiece(i)) {
+                count++;
+            }
+        }
 
-    public Future<Void> checkPiecesOnDisk() {
-        // fast and memory efficient implementation to check pieces of large files
+        return count;
+    }
 
-        int numThreads = Runtime.getRuntime().availableProcessors();
+    public boolean isTorrentComplete() {
+        return bitfield.containsAll(wantedPieces);
+    }
 
-        log.debug("Checking completed pieces with {} threads ...", numThreads);
+    /**
+     * Allocates all files that are not skipped one after another on a worker thread.
+     */
+    public Future<Void> allocateFiles(AllocationMode mode) {
+        if (mode == AllocationMode.None) {
+            return Future.succeededFuture();
+        }
 
-        long start = System.currentTimeMillis();
+        List<FileInfo> files = torrent.getFiles();
 
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        allocatedBytes = 0;
+        bytesToAllocate = 0;
 
-        int piecesPerTask = (int) (torrent.getPiecesCount() / numThreads);
-        int remainingPieces = (int) (torrent.getPiecesCount() % numThreads);
+        Future<Void> future = Future.succeededFuture();
 
-        Map<String, FileChannel> files = new ConcurrentHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (filePriorities[i] == FilePriority.SKIP) {
+                continue;
+            }
 
-        for (int task = 0; task < numThreads; task++) {
-            int pieceIndex = task * piecesPerTask;
-            int numPieces = task == numThreads - 1 ? piecesPerTask + remainingPieces : piecesPerTask;
+            FileInfo fileInfo = files.get(i);
 
-            completionService.submit(() -> {
-                byte[] hashOutput = new byte[20];
-                ByteBuffer buffer = ByteBuffer.allocate((int) torrent.getPieceLength());
+            bytesToAllocate += fileInfo.getLength();
 
-                for (int i = pieceIndex; i < pieceIndex + numPieces; i++) {
-                    int pieceOffset = 0;
-                    int pieceLength = (int) torrent.getLengthForPiece(i);
+            future = future.compose(v -> vertx.executeBlocking(
+                    () -> {
+                        log.trace("Allocating {} ({})", fileInfo.getPath(), mode);
 
-                    buffer.position(0);
+                        Path path = Paths.get(storage.getPath(fileInfo));
 
-                    while (pieceOffset < pieceLength) {
-                        FilePosition position = torrent.getFilePositionForPiece(i, pieceOffset);
-                        FileInfo fileInfo = position.getFileInfo();
+                        // only one file is allocated at a time
+                        FileAllocator.allocate(path, fileInfo.getLength(), mode, bytes -> allocatedBytes += bytes);
 
-                        int bytesToRead =
-                                (int) Math.min(fileInfo.getLength() - position.getOffset(), pieceLength - pieceOffset);
+                        return null;
+                    },
+                    false));
+        }
 
-                        buffer.limit(pieceOffset + bytesToRead);
+        return future;
+    }
 
-                        var file = files.computeIfAbsent(fileInfo.getPath(), path -> {
-                            try {
-                                return FileChannel.open(Paths.get(dataDir, path), StandardOpenOption.READ);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
+    public Future<Void> close() {
+        // files are closed even if pending pieces could not be written
+        return flushWrites().transform(ar -> storage.close());
+    }
 
-                        try {
-                            int bytesRead = file.read(buffer, position.getOffset());
+    /**
+     * Marks the completed pieces of the resume data that only span files which did not change since the resume data
+     * was created. All other pieces have to be checked on disk.
+     *
+     * @return pieces that only span unchanged files
+     */
+    public Future<Bitfield> applyResumeData(ResumeData resumeData) {
+        Bitfield unchangedPieces = Bitfield.fromSize((int) torrent.getPiecesCount());
+
+        if (resumeData == null) {
+            return Future.succeededFuture(unchangedPieces);
+        }
 
-                            if (bytesRead == -1) {
-                                break;
-                            }
+        return getFileProps().map(props -> {
+            List<FileInfo> files = torrent.getFiles();
 
-                            pieceOffset += bytesRead;
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
-                        }
-                    }
+            boolean[] unchangedFiles = new boolean[files.size()];
 
-                    buffer.position(0);
+            for (int i = 0; i < files.size(); i++) {
+                unchangedFiles[i] = files.get(i).getLength() == 0
+                        || (props[i] != null
+                                && resumeData.isFileUnchanged(i, props[i].size(), props[i].lastModifiedTime()));
 
-                    boolean isValid = false;
+                if (!unchangedFiles[i]) {
+                    log.debug("File {} changed since resume data was saved", files.get(i).getPath());
+                }
+            }
 
-                    if (pieceOffset == pieceLength) {
-                        HashUtils.sha1(buffer, hashOutput);
+            for (int i = 0; i < torrent.getPiecesCount(); i++) {
+                if (isPieceUnchanged(i, unchangedFiles)) {
+                    unchangedPieces.setPiece(i);
 
-                        if (HashUtils.isEqual(torrent.getHashForPiece(i), hashOutput)) {
-                            isValid = true;
-                        }
+                    if (resumeData.getBitfield().hasPiece(i)) {
+                        bitfield.setPiece(i);
                     }
+                }
+            }
 
-                    if (isValid) {
-                        log.trace("Piece with index {} is valid", i);
+            return unchangedPieces;
+        });
+    }
 
-                        synchronized (bitfield) {
-                            bitfield.setPiece(i);
-                        }
-                    } else {
-                        log.trace("Piece with index {} is invalid", i);
-                    }
-                }
-                return null;
-            });
-        }
+    private boolean isPieceUnchanged(int pieceIndex, boolean[] unchangedFiles) {
+        long pieceStart = pieceIndex * torrent.getPieceLength();
+        long pieceEnd = pieceStart + torrent.getLengthForPiece(pieceIndex);
 
-        int finished = 0;
-        while (finished < numThreads) {
-            try {
-                completionService.take();
-                finished++;
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        for (int i = getFileIndexAt(pieceStart); i < fileOffsets.length && fileOffsets[i] < pieceEnd; i++) {
+            if (!unchangedFiles[i]) {
+                return false;
             }
         }
 
-        for (var file : files.values()) {
-            try {
-                file.close();
-            } catch (IOException e) {
-                log.error("Error", e);
+        return true;
+    }
+
+    /**
+     * Captures the completed pieces and the state of the files. Pieces completed after this call are not included,
+     * so a piece is never marked as completed while its file still has the previous modification time.
+     */
+    public Future<ResumeData> createResumeData(Map<Integer, Bitfield> partialPieces) {
+        Bitfield completed = Bitfield.fromBytes(bitfield.toByteArray());
+
+        return getFileProps().map(props -> {
+            long[] fileSizes = new long[props.length];
+            long[] fileModifiedTimes = new long[props.length];
+
+            for (int i = 0; i < props.length; i++) {
+                fileSizes[i] = props[i] != null ? props[i].size() : -1;
+                fileModifiedTimes[i] = props[i] != null ? props[i].lastModifiedTime() : -1;
             }
-        }
 
-        long duration = System.currentTimeMillis() - start;
+            return new ResumeData(torrent.getInfoHash(), completed, fileSizes, fileModifiedTimes, partialPieces);
+        });
+    }
+
+    // properties of each file, null for missing files
+    private Future<FileProps[]> getFileProps() {
+        List<FileInfo> files = torrent.getFiles();
+
+        FileProps[] props = new FileProps[files.size()];
+
+        List<Future<FileProps>> futures = new ArrayList<>();
 
-        log.debug("Checking pieces took {}", Duration.ofMillis(duration));
+        for (int i = 0; i < files.size(); i++) {
+            int fileIndex = i;
 
-        return Future.succeededFuture();
+            futures.add(vertx.fileSystem()
+                    .props(storage.getPath(files.get(i)))
+                    .onSuccess(fileProps -> props[fileIndex] = fileProps)
+                    .otherwiseEmpty());
+        }
+
+        return Future.all(futures).map(props);
+    }
+
+    /**
+     * Hashes the piece on disk and compares it with the hash of the torrent. Missing or incomplete files make the piece
+     * invalid.
+     */
+    public Future<Boolean> checkPiece(int index) {
+        return storage.hashRange(index, 0, (int) torrent.getLengthForPiece(index))
+                .map(hash -> HashUtils.isEqual(hash, torrent.getHashForPiece(index)))
+                .otherwise(false);
     }
 
     public Future<Buffer> readPieceFromDisk(int index) {
-        int pieceOffset = 0;
-        int pieceLength = (int) torrent.getLengthForPiece(index);
+        return readBlock(index, 0, (int) torrent.getLengthForPiece(index));
+    }
 
-        Buffer buffer = Buffer.buffer(pieceLength);
+    /**
+     * Reads only the file ranges spanned by the block.
+     */
+    public Future<Buffer> readBlock(int index, int begin, int length) {
+        long pieceLength = torrent.getLengthForPiece(index);
 
-        List<Future<Buffer>> futures = new ArrayList<>();
+        // compared without adding, as begin + length may overflow for requests of peers
+        if (begin < 0 || length <= 0 || begin > pieceLength || length > pieceLength - begin) {
+            return Future.failedFuture(new IndexOutOfBoundsException(
+                    "block at " + begin + " with length " + length + " exceeds piece " + index));
+        }
+
+        return storage.readBlock(index, begin, length);
+    }
 
-        while (pieceOffset < pieceLength) {
+    /**
+     * File ranges spanned by the block.
+     */
+    public Future<List<FileSpan>> getFileSpans(int index, int begin, int length) {
+        long pieceLength = torrent.getLengthForPiece(index);
+
+        // compared without adding, as begin + length may overflow for requests of peers
+        if (begin < 0 || length <= 0 || begin > pieceLength || length > pieceLength - begin) {
+            return Future.failedFuture(new IndexOutOfBoundsException(
+                    "block at " + begin + " with length " + length + " exceeds piece " + index));
+        }
+
+        List<FileSpan> spans = new ArrayList<>();
+
+        int pieceOffset = begin;
+        int blockEnd = begin + length;
+
+        while (pieceOffset < blockEnd) {
             FilePosition position = torrent.getFilePositionForPiece(index, pieceOffset);
             FileInfo fileInfo = position.getFileInfo();
 
-            int bytesToRead = (int) Math.min(fileInfo.getLength() - position.getOffset(), pieceLength - pieceOffset);
+            int spanLength = (int) Math.min(fileInfo.getLength() - position.getOffset(), blockEnd - pieceOffset);
 
-            AsyncFile file = fileMap.get(fileInfo.getPath());
+            spans.add(new FileSpan(storage.getPath(fileInfo), position.getOffset(), spanLength));
 
-            futures.add(file.read(buffer, pieceOffset, position.getOffset(), bytesToRead));
-
-            pieceOffset += bytesToRead;
+            pieceOffset += spanLength;
         }
 
-        return Future.all(futures).map(buffer);
+        return Future.succeededFuture(spans);
     }
 
+    /**
+     * Whether the pieces in the write cache and the pieces being written exceed the size of the write cache, so no new
+     * blocks should be requested until the writes completed.
+     */
+    public boolean isWriteCacheFull() {
+        return writeCacheSize > 0 && pendingWriteBytes >= writeCacheSize;
+    }
+
+    /**
+     * Writes the piece directly or through the write cache if enabled. With the write cache the future completes once
+     * the piece was flushed to the storage device. Pieces without data were already written block by block.
+     */
     public Future<Void> writePieceToDisk(Piece piece) {
-        int pieceOffset = 0;
-        int pieceLength = piece.getData().length();
+        if (piece.getData() == null) {
+            return Future.succeededFuture();
+        }
 
-        List<Future<Void>> futures = new ArrayList<>();
+        if (writeCacheSize <= 0) {
+            return storage.writePiece(piece.getIndex(), piece.getData(), false);
+        }
 
-        while (pieceOffset < pieceLength) {
-            FilePosition position = torrent.getFilePositionForPiece(piece.getIndex(), pieceOffset);
-            FileInfo fileInfo = position.getFileInfo();
+        Promise<Void> promise = Promise.promise();
+
+        PendingWrite previous = pendingWrites.put(piece.getIndex(), new PendingWrite(piece, promise));
+
+        if (previous != null) {
+            pendingWriteBytes -= previous.getPiece().getData().length();
+            previous.getPromise().fail("Piece " + piece.getIndex() + " was replaced in write cache");
+        }
+
+        pendingWriteBytes += piece.getData().length();
 
-            int bytesToWrite = (int) Math.min(fileInfo.getLength() - position.getOffset(), pieceLength - pieceOffset);
+        if (pendingWriteBytes >= writeCacheSize) {
+            flushWrites();
+        } else if (flushTimerId == -1) {
+            // the oldest piece is written after the maximum age at the latest
+            flushTimerId = vertx.setTimer(writeCacheAge, id -> {
+                flushTimerId = -1;
+                flushWrites();
+            });
+        }
 
-            Buffer slice = piece.getData().slice(pieceOffset, pieceOffset + bytesToWrite);
+        return promise.future();
+    }
 
-            AsyncFile file = fileMap.get(fileInfo.getPath());
+    /**
+     * Overwrites the saved blocks of a piece that failed the hash check with zeros and marks them as not saved, so the
+     * invalid data is neither restored from the resume data nor read back when the piece is hashed again.
+     */
+    public Future<Void> invalidateBlocks(PieceState pieceState) {
+        Buffer zeros = Buffer.buffer(new byte[ProtocolHandler.MAX_BLOCK_SIZE]);
 
-            futures.add(file.write(slice, position.getOffset()));
+        List<Future<Void>> futures = new ArrayList<>();
 
-            pieceOffset += bytesToWrite;
+        for (int i = 0; i < pieceState.getBlocksCount(); i++) {
+            if (!pieceState.isBlockSaved(i)) {
+                continue;
+            }
+
+            int blockIndex = i;
+            Buffer data = zeros.slice(0, pieceState.getBlockSize(i));
+
+            futures.add(storage.writeBlock(pieceState.getIndex(), pieceState.getBlockOffset(i), data, false)
+                    .onSuccess(v -> pieceState.clearBlockSaved(blockIndex)));
         }
 
         return Future.all(futures).mapEmpty();
     }
+
+    /**
+     * Writes all pieces in the write cache. Adjacent pieces are merged into one write per file.
+     */
+    public Future<Void> flushWrites() {
+        if (flushTimerId != -1) {
+            vertx.cancelTimer(flushTimerId);
+            flushTimerId = -1;
+        }
+
+        if (pendingWrites.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        List<PendingWrite> writes = new ArrayList<>(pendingWrites.values());
+
+        pendingWrites.clear();
+
+        List<Future<Void>> futures = new ArrayList<>();
+
+        int runStart = 0;
+        while (runStart < writes.size()) {
+            int runEnd = runStart + 1;
+            int length = writes.get(runStart).getPiece().getData().length();
+
+            while (runEnd < writes.size()
+                    && writes.get(runEnd).getPiece().getIndex()
+                            == writes.get(runEnd - 1).getPiece().getIndex() + 1
+                    && length + writes.get(runEnd).getPiece().getData().length() <= MAX_MERGED_WRITE) {
+                length += writes.get(runEnd).getPiece().getData().length();
+                runEnd++;
+            }
+
+            List<PendingWrite> run = writes.subList(runStart, runEnd);
+            int runLength = length;
+
+            Buffer data;
+            if (run.size() == 1) {
+                data = run.get(0).getPiece().getData();
+            } else {
+                data = Buffer.buffer(length);
+
+                for (var write : run) {
+                    data.appendBuffer(write.getPiece().getData());
+                }
+            }
+
+            log.trace("Writing {} pieces starting at {}", run.size(), run.get(0).getPiece().getIndex());
+
+            Future<Void> future = storage.writePiece(run.get(0).getPiece().getIndex(), data, true)
+                    .onComplete(ar -> pendingWriteBytes -= runLength)
+                    .onSuccess(v -> run.forEach(write -> write.getPromise().complete()))
+                    .onFailure(ex -> run.forEach(write -> write.getPromise().fail(ex)));
+
+            futures.add(future);
+
+            runStart = runEnd;
+        }
+
+        return Future.join(futures).mapEmpty();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class PendingWrite {
+        private final Piece piece;
+        private final Promise<Void> promise;
+    }
 }
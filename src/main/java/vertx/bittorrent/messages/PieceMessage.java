@@ -35,6 +35,18 @@ public class PieceMessage extends Message {
         return "PieceMessage(pieceIndex=" + pieceIndex + ", begin=" + begin + ", data.length=" + data.length() + ")";
     }
 
+    /**
+     * Everything of the message except the data, for sending the data separately.
+     */
+    public static Buffer header(int pieceIndex, int begin, int length) {
+        Buffer buffer = Buffer.buffer(13);
+        buffer.appendInt(9 + length);
+        buffer.appendByte((byte) MessageType.PIECE.getValue());
+        buffer.appendInt(pieceIndex);
+        buffer.appendInt(begin);
+        return buffer;
+    }
+
     public static PieceMessage fromBuffer(ByteBuffer buffer) {
         int pieceIndex = buffer.getInt();
         int begin = buffer.getInt();
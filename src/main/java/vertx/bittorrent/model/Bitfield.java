@@ -29,10 +29,25 @@ public class Bitfield {
         bits.set(index);
     }
 
+    public int nextPiece(int fromIndex) {
+        return bits.nextSetBit(fromIndex);
+    }
+
     public int nextMissingPiece(int fromIndex) {
         return bits.nextClearBit(fromIndex);
     }
 
+    public boolean containsAll(Bitfield other) {
+        BitSet missing = (BitSet) other.bits.clone();
+        missing.andNot(bits);
+
+        return missing.isEmpty();
+    }
+
+    public void clearPiece(int index) {
+        bits.clear(index);
+    }
+
     public int cardinality() {
         return bits.cardinality();
     }
@@ -1,8 +1,15 @@
 package vertx.bittorrent.model;
 
 import com.beust.jcommander.Parameter;
+import java.util.ArrayList;
 import java.util.List;
 import lombok.Getter;
+import vertx.bittorrent.HashingService;
+import vertx.bittorrent.PieceBufferPool;
+import vertx.bittorrent.RecheckService;
+import vertx.bittorrent.RequestPipeline;
+import vertx.bittorrent.storage.DiskScheduler;
+import vertx.bittorrent.storage.FileHandlePool;
 
 @Getter
 public class ClientOptions {
@@ -24,6 +31,99 @@ public class ClientOptions {
     @Parameter(names = "--dht-debug")
     private boolean dhtDebug = false;
 
+    @Parameter(names = "--min-request-queue")
+    private int minRequestQueue = RequestPipeline.DEFAULT_MIN_DEPTH;
+
+    @Parameter(names = "--max-request-queue")
+    private int maxRequestQueue = RequestPipeline.DEFAULT_MAX_DEPTH;
+
+    // maximum number of peers a block is requested from at the same time in end game
+    @Parameter(names = "--end-game-requests")
+    private int endGameRequests = 3;
+
+    // number of corrupt blocks after which a peer is banned
+    @Parameter(names = "--ban-threshold")
+    private int banThreshold = 2;
+
+    // seconds
+    @Parameter(names = "--ban-duration")
+    private int banDuration = 3600;
+
+    // memory for cached blocks of uploaded pieces in MiB, 0 disables the cache
+    @Parameter(names = "--read-cache-size")
+    private int readCacheSize = 64;
+
+    // memory for verified pieces waiting to be written in MiB, 0 writes pieces immediately
+    @Parameter(names = "--write-cache-size")
+    private int writeCacheSize = 0;
+
+    // seconds until cached pieces are written
+    @Parameter(names = "--write-cache-age")
+    private int writeCacheAge = 5;
+
+    // file (asynchronous file access) or mmap (memory mapped files)
+    @Parameter(names = "--storage")
+    private String storage = "file";
+
+    // none (files grow while downloading), sparse (files are created with their full length) or full (space is
+    // reserved before downloading)
+    @Parameter(names = "--allocation")
+    private String allocation = "none";
+
+    // maximum number of files kept open for all torrents
+    @Parameter(names = "--max-open-files")
+    private int maxOpenFiles = FileHandlePool.DEFAULT_MAX_OPEN_FILES;
+
+    // maximum size of memory mapped regions per torrent in MiB
+    @Parameter(names = "--mmap-window")
+    private int mmapWindowSize = 256;
+
+    // directory of the files holding the state of each torrent between restarts
+    @Parameter(names = "--resume-dir")
+    private String resumeDir = ".resume";
+
+    // seconds between saving the resume data, 0 saves it only on shutdown
+    @Parameter(names = "--resume-interval")
+    private int resumeInterval = 60;
+
+    // pieces checked at the same time per storage device when starting torrents
+    @Parameter(names = "--recheck-parallelism")
+    private int recheckParallelism = RecheckService.DEFAULT_PARALLELISM;
+
+    // disk operations running at the same time per storage device
+    @Parameter(names = "--disk-queue-depth")
+    private int diskQueueDepth = DiskScheduler.DEFAULT_MAX_ACTIVE;
+
+    // MiB of pending writes above which no new blocks are requested, 0 disables the limit
+    @Parameter(names = "--max-pending-writes")
+    private int maxPendingWrites = (int) (DiskScheduler.DEFAULT_MAX_QUEUED_BYTES / 1024 / 1024);
+
+    // threads verifying downloaded pieces
+    @Parameter(names = "--hashing-threads")
+    private int hashingThreads = HashingService.DEFAULT_THREADS;
+
+    // MiB of downloaded data waiting to be hashed above which no new blocks are requested, 0 disables the limit
+    @Parameter(names = "--max-pending-hashes")
+    private int maxPendingHashes = (int) (HashingService.DEFAULT_MAX_QUEUED_BYTES / 1024 / 1024);
+
+    // MiB of released piece buffers kept for reuse
+    @Parameter(names = "--piece-buffer-pool")
+    private int pieceBufferPool = (int) (PieceBufferPool.DEFAULT_MAX_POOLED_BYTES / 1024 / 1024);
+
+    // blocks are written to their files as they arrive instead of keeping whole pieces in memory
+    @Parameter(names = "--low-memory")
+    private boolean lowMemory = false;
+
+    @Parameter(names = "--sequential")
+    private boolean sequential = false;
+
+    @Parameter(names = "--streaming-window")
+    private int streamingWindow = 16;
+
+    // indexes of files in the torrent that are not downloaded
+    @Parameter(names = "--skip-file")
+    private List<Integer> skippedFiles = new ArrayList<>();
+
     @Parameter
     private List<String> torrentFilePaths;
 }
@@ -0,0 +1,28 @@
+package vertx.bittorrent.model;
+
+public enum FilePriority {
+    SKIP(0),
+    LOW(1),
+    NORMAL(2),
+    HIGH(3);
+
+    private int value;
+
+    FilePriority(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public static FilePriority fromValue(int value) {
+        for (FilePriority priority : FilePriority.values()) {
+            if (priority.value == value) {
+                return priority;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown file priority: " + value);
+    }
+}
@@ -0,0 +1,110 @@
+package vertx.bittorrent.model;
+
+import be.adaxisoft.bencode.BDecoder;
+import be.adaxisoft.bencode.BEncodedValue;
+import io.vertx.core.buffer.Buffer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import vertx.bittorrent.BEncodedDict;
+
+/**
+ * State of a torrent saved on disk, so the pieces do not have to be checked again after a restart as long as the
+ * files did not change.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ResumeData {
+    private final byte[] infoHash;
+
+    private final Bitfield bitfield;
+
+    // size and modification time in milliseconds of each file when the resume data was created, -1 if missing
+    private final long[] fileSizes;
+    private final long[] fileModifiedTimes;
+
+    // blocks of incomplete pieces that were written to disk, indexed by piece
+    private final Map<Integer, Bitfield> partialPieces;
+
+    public boolean isFileUnchanged(int fileIndex, long size, long modifiedTime) {
+        return fileIndex < fileSizes.length
+                && fileSizes[fileIndex] == size
+                && fileModifiedTimes[fileIndex] == modifiedTime;
+    }
+
+    public Buffer toBuffer() {
+        BEncodedDict dict = new BEncodedDict();
+
+        dict.put("info hash", infoHash);
+        dict.put("pieces", bitfield.toByteArray());
+
+        List<BEncodedValue> files = new ArrayList<>();
+
+        for (int i = 0; i < fileSizes.length; i++) {
+            BEncodedDict file = new BEncodedDict();
+
+            file.put("length", fileSizes[i]);
+            file.put("mtime", fileModifiedTimes[i]);
+
+            files.add(file.toValue());
+        }
+
+        dict.put("files", files);
+
+        List<BEncodedValue> partial = new ArrayList<>();
+
+        for (var entry : partialPieces.entrySet()) {
+            BEncodedDict piece = new BEncodedDict();
+
+            piece.put("piece", entry.getKey());
+            piece.put("blocks", entry.getValue().toByteArray());
+
+            partial.add(piece.toValue());
+        }
+
+        dict.put("partial", partial);
+
+        return Buffer.buffer(dict.encode().array());
+    }
+
+    public static ResumeData fromBuffer(Buffer buffer) {
+        try (var is = new ByteArrayInputStream(buffer.getBytes())) {
+            BEncodedDict dict = new BEncodedDict(BDecoder.decode(is));
+
+            List<BEncodedValue> files = dict.requireList("files");
+
+            long[] fileSizes = new long[files.size()];
+            long[] fileModifiedTimes = new long[files.size()];
+
+            for (int i = 0; i < files.size(); i++) {
+                BEncodedDict file = BEncodedDict.from(files.get(i));
+
+                fileSizes[i] = file.requireLong("length");
+                fileModifiedTimes[i] = file.requireLong("mtime");
+            }
+
+            Map<Integer, Bitfield> partialPieces = new TreeMap<>();
+
+            for (var value : dict.findList("partial").orElse(List.of())) {
+                BEncodedDict piece = BEncodedDict.from(value);
+
+                partialPieces.put(piece.requireInt("piece"), Bitfield.fromBytes(piece.requireBytes("blocks")));
+            }
+
+            return new ResumeData(
+                    dict.requireBytes("info hash"),
+                    Bitfield.fromBytes(dict.requireBytes("pieces")),
+                    fileSizes,
+                    fileModifiedTimes,
+                    partialPieces);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package vertx.bittorrent.storage;
+
+public enum AllocationMode {
+    // files grow with the pieces written to them
+    None,
+    // files are created with their full length without reserving space, unwritten ranges are holes
+    Sparse,
+    // space for the full length is reserved by writing zeros, so the file system can allocate contiguous blocks
+    Full;
+
+    public static AllocationMode fromName(String name) {
+        for (AllocationMode mode : AllocationMode.values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown allocation mode: " + name);
+    }
+}
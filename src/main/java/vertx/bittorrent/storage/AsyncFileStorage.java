@@ -0,0 +1,151 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import vertx.bittorrent.model.FileInfo;
+import vertx.bittorrent.model.FilePosition;
+import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.utils.HashUtils;
+
+/**
+ * Reads and writes through Vert.x {@link AsyncFile}s from a {@link FileHandlePool}. Hashing opens short-lived
+ * {@link FileChannel}s on worker threads.
+ */
+public class AsyncFileStorage implements StorageBackend {
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
+    private final Vertx vertx;
+    private final Torrent torrent;
+    private final String dataDir;
+
+    private final FileHandlePool fileHandlePool;
+
+    public AsyncFileStorage(Vertx vertx, Torrent torrent, String dataDir) {
+        this(vertx, torrent, dataDir, new FileHandlePool(vertx, FileHandlePool.DEFAULT_MAX_OPEN_FILES));
+    }
+
+    public AsyncFileStorage(Vertx vertx, Torrent torrent, String dataDir, FileHandlePool fileHandlePool) {
+        this.vertx = vertx;
+        this.torrent = torrent;
+        this.dataDir = dataDir;
+        this.fileHandlePool = fileHandlePool;
+    }
+
+    @Override
+    public Future<Buffer> readBlock(int pieceIndex, int begin, int length) {
+        int pieceOffset = begin;
+        int blockEnd = begin + length;
+
+        Buffer buffer = Buffer.buffer(length);
+
+        List<Future<Buffer>> futures = new ArrayList<>();
+
+        while (pieceOffset < blockEnd) {
+            FilePosition position = torrent.getFilePositionForPiece(pieceIndex, pieceOffset);
+            FileInfo fileInfo = position.getFileInfo();
+
+            int bytesToRead = (int) Math.min(fileInfo.getLength() - position.getOffset(), blockEnd - pieceOffset);
+
+            int bufferOffset = pieceOffset - begin;
+
+            // missing files are not created by reading them
+            futures.add(fileHandlePool.withFile(
+                    getPath(fileInfo),
+                    false,
+                    file -> file.read(buffer, bufferOffset, position.getOffset(), bytesToRead)));
+
+            pieceOffset += bytesToRead;
+        }
+
+        return Future.all(futures).map(buffer);
+    }
+
+    @Override
+    public Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync) {
+        int dataOffset = 0;
+        int dataLength = data.length();
+
+        List<Future<Void>> futures = new ArrayList<>();
+
+        while (dataOffset < dataLength) {
+            FilePosition position = torrent.getFilePositionForPiece(pieceIndex, begin + dataOffset);
+            FileInfo fileInfo = position.getFileInfo();
+
+            int bytesToWrite = (int) Math.min(fileInfo.getLength() - position.getOffset(), dataLength - dataOffset);
+
+            Buffer slice = data.slice(dataOffset, dataOffset + bytesToWrite);
+
+            futures.add(fileHandlePool.withFile(getPath(fileInfo), true, file -> file.write(slice, position.getOffset())
+                    .compose(v -> sync ? file.flush() : Future.succeededFuture())));
+
+            dataOffset += bytesToWrite;
+        }
+
+        return Future.all(futures).mapEmpty();
+    }
+
+    @Override
+    public Future<byte[]> hashRange(int pieceIndex, int begin, int length) {
+        return vertx.executeBlocking(
+                () -> {
+                    MessageDigest digest = HashUtils.getSha1();
+                    ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, HASH_BUFFER_SIZE));
+
+                    int pieceOffset = begin;
+                    int end = begin + length;
+
+                    while (pieceOffset < end) {
+                        FilePosition position = torrent.getFilePositionForPiece(pieceIndex, pieceOffset);
+                        FileInfo fileInfo = position.getFileInfo();
+
+                        long fileOffset = position.getOffset();
+                        long spanEnd = fileOffset + Math.min(fileInfo.getLength() - fileOffset, end - pieceOffset);
+
+                        // channels are not kept open so hashing does not count against the open files
+                        try (FileChannel channel =
+                                FileChannel.open(Paths.get(getPath(fileInfo)), StandardOpenOption.READ)) {
+                            while (fileOffset < spanEnd) {
+                                buffer.clear();
+                                buffer.limit((int) Math.min(spanEnd - fileOffset, buffer.capacity()));
+
+                                int bytesRead = channel.read(buffer, fileOffset);
+
+                                if (bytesRead <= 0) {
+                                    throw new EOFException(
+                                            "Could not read " + fileInfo.getPath() + " at " + fileOffset);
+                                }
+
+                                buffer.flip();
+                                digest.update(buffer);
+
+                                fileOffset += bytesRead;
+                                pieceOffset += bytesRead;
+                            }
+                        }
+                    }
+
+                    return digest.digest();
+                },
+                false);
+    }
+
+    @Override
+    public String getPath(FileInfo fileInfo) {
+        return Paths.get(dataDir, fileInfo.getPath()).toString();
+    }
+
+    @Override
+    public Future<Void> close() {
+        return fileHandlePool.close(torrent.getFiles().stream().map(this::getPath).toList());
+    }
+}
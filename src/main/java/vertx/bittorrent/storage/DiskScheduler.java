@@ -0,0 +1,211 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import lombok.Getter;
+
+/**
+ * Orders the disk operations of all torrents per storage device. Reads for uploads are served first, writes are
+ * sorted by file and offset and served in one direction like an elevator, and rechecks only run if nothing else is
+ * queued. A bounded number of operations runs per device at the same time.
+ */
+public class DiskScheduler {
+    public static final int DEFAULT_MAX_ACTIVE = 4;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    // used if the device of a file could not be determined
+    private static final String UNKNOWN_DEVICE = "unknown";
+
+    private static final Comparator<Operation<?>> WRITE_ORDER = Comparator.comparing((Operation<?> op) -> op.path)
+            .thenComparingLong(op -> op.offset)
+            .thenComparingLong(op -> op.sequence);
+
+    public enum Priority {
+        Upload,
+        Write,
+        Recheck
+    }
+
+    // operations running at the same time per device
+    @Getter
+    private final int maxActive;
+
+    // bytes of queued and running writes above which peers should not be asked for more data
+    @Getter
+    private final long maxQueuedBytes;
+
+    private final Map<Object, Device> devices = new HashMap<>();
+
+    private long nextSequence = 0;
+
+    @Getter
+    private long queuedWriteBytes = 0;
+
+    @Getter
+    private long completedCount = 0;
+
+    public DiskScheduler(int maxActive, long maxQueuedBytes) {
+        this.maxActive = Math.max(maxActive, 1);
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Whether writes are falling behind, so no new blocks should be requested.
+     */
+    public boolean isCongested() {
+        return maxQueuedBytes > 0 && queuedWriteBytes >= maxQueuedBytes;
+    }
+
+    public int getQueuedCount() {
+        return devices.values().stream().mapToInt(Device::getQueuedCount).sum();
+    }
+
+    /**
+     * Queues an operation on the device. The action is started once all operations with a higher priority were
+     * started and less than the maximum number of operations run on the device.
+     *
+     * @param path file the operation starts in
+     * @param offset offset inside the file, used to order writes
+     */
+    public <T> Future<T> submit(
+            Object device, Priority priority, String path, long offset, int length, Supplier<Future<T>> action) {
+        Device queue = devices.computeIfAbsent(device, k -> new Device());
+
+        Operation<T> operation = new Operation<>(priority, path, offset, length, nextSequence++, action);
+
+        switch (priority) {
+            case Upload -> queue.uploads.add(operation);
+            case Write -> {
+                queue.writes.add(operation);
+                queuedWriteBytes += length;
+            }
+            case Recheck -> queue.rechecks.add(operation);
+        }
+
+        schedule(queue);
+
+        return operation.promise.future();
+    }
+
+    /**
+     * Key of the storage device holding the file. Files are created lazily so the nearest existing directory decides
+     * the device.
+     */
+    public static Future<Object> getDevice(Vertx vertx, String filePath) {
+        return vertx.<Object>executeBlocking(
+                        () -> {
+                            Path path = Paths.get(filePath).toAbsolutePath();
+
+                            while (path != null && !Files.exists(path)) {
+                                path = path.getParent();
+                            }
+
+                            return path != null ? Files.getFileStore(path) : UNKNOWN_DEVICE;
+                        },
+                        false)
+                .otherwise(UNKNOWN_DEVICE);
+    }
+
+    private void schedule(Device device) {
+        while (device.activeCount < maxActive) {
+            Operation<?> operation = device.next();
+
+            if (operation == null) {
+                break;
+            }
+
+            device.activeCount++;
+
+            operation.run().onComplete(ar -> {
+                device.activeCount--;
+                completedCount++;
+
+                if (operation.priority == Priority.Write) {
+                    queuedWriteBytes -= operation.length;
+                }
+
+                schedule(device);
+            });
+        }
+    }
+
+    private static class Device {
+        private final Deque<Operation<?>> uploads = new ArrayDeque<>();
+        private final TreeSet<Operation<?>> writes = new TreeSet<>(WRITE_ORDER);
+        private final Deque<Operation<?>> rechecks = new ArrayDeque<>();
+
+        private int activeCount = 0;
+
+        // position of the last started write
+        private Operation<?> lastWrite;
+
+        private int getQueuedCount() {
+            return uploads.size() + writes.size() + rechecks.size();
+        }
+
+        private Operation<?> next() {
+            if (!uploads.isEmpty()) {
+                return uploads.poll();
+            }
+
+            if (!writes.isEmpty()) {
+                // continue after the last write and start over at the lowest position at the end
+                Operation<?> write = lastWrite != null ? writes.higher(lastWrite) : null;
+
+                if (write == null) {
+                    write = writes.first();
+                }
+
+                writes.remove(write);
+                lastWrite = write;
+
+                return write;
+            }
+
+            return rechecks.poll();
+        }
+    }
+
+    private static class Operation<T> {
+        private final Priority priority;
+        private final String path;
+        private final long offset;
+        private final int length;
+        private final long sequence;
+        private final Supplier<Future<T>> action;
+        private final Promise<T> promise = Promise.promise();
+
+        private Operation(
+                Priority priority, String path, long offset, int length, long sequence, Supplier<Future<T>> action) {
+            this.priority = priority;
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        private Future<T> run() {
+            Future<T> future;
+
+            try {
+                future = action.get();
+            } catch (RuntimeException ex) {
+                future = Future.failedFuture(ex);
+            }
+
+            return future.onComplete(promise);
+        }
+    }
+}
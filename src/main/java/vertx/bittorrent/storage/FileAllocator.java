@@ -0,0 +1,68 @@
+package vertx.bittorrent.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongConsumer;
+
+/**
+ * Creates files with their final length before pieces are written. Allocation blocks and has to run on a worker
+ * thread.
+ */
+public final class FileAllocator {
+    private static final int ZERO_BUFFER_SIZE = 1024 * 1024;
+
+    private FileAllocator() {}
+
+    /**
+     * Extends the file to the length. Existing data is never overwritten, only the range after the current end of the
+     * file is allocated.
+     *
+     * @param progress receives the bytes covered by each step, starting with the bytes already in the file
+     */
+    public static void allocate(Path path, long length, AllocationMode mode, LongConsumer progress)
+            throws IOException {
+        if (mode == AllocationMode.None) {
+            return;
+        }
+
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            long size = file.length();
+
+            progress.accept(Math.min(size, length));
+
+            if (size >= length) {
+                return;
+            }
+
+            if (mode == AllocationMode.Sparse) {
+                file.setLength(length);
+                progress.accept(length - size);
+                return;
+            }
+
+            FileChannel channel = file.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_BUFFER_SIZE);
+
+            long position = size;
+
+            while (position < length) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZERO_BUFFER_SIZE, length - position));
+
+                int count = channel.write(zeros, position);
+
+                position += count;
+                progress.accept(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Open files shared by all torrents. Files are opened on first access and the least recently used files are closed
+ * when more than the maximum number of files are open. Files that are in use are never closed, so the limit may be
+ * exceeded while all open files are in use.
+ */
+@Slf4j
+public class FileHandlePool {
+    public static final int DEFAULT_MAX_OPEN_FILES = 512;
+
+    private final Vertx vertx;
+
+    @Getter
+    private final int maxOpenFiles;
+
+    // open files by path in access order, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Future<Handle>> openingFiles = new HashMap<>();
+
+    @Getter
+    private long opens = 0;
+
+    @Getter
+    private long evictions = 0;
+
+    public FileHandlePool(Vertx vertx, int maxOpenFiles) {
+        this.vertx = vertx;
+        this.maxOpenFiles = Math.max(maxOpenFiles, 1);
+    }
+
+    public int getOpenCount() {
+        return handles.size();
+    }
+
+    /**
+     * Runs the action with the open file. The file is not closed before the future of the action completes.
+     *
+     * @param create whether a missing file is created, otherwise opening it fails
+     */
+    public <T> Future<T> withFile(String path, boolean create, Function<AsyncFile, Future<T>> action) {
+        return acquire(path, create).compose(handle -> action.apply(handle.file).onComplete(ar -> release(handle)));
+    }
+
+    /**
+     * Closes the files, e.g. when a torrent is removed. Files that are in use are closed once they were released.
+     */
+    public Future<Void> close(Collection<String> paths) {
+        List<Future<Void>> futures = new ArrayList<>();
+
+        for (String path : paths) {
+            Handle handle = handles.remove(path);
+
+            if (handle == null) {
+                continue;
+            }
+
+            if (handle.refCount > 0) {
+                handle.closed = Promise.promise();
+                futures.add(handle.closed.future());
+            } else {
+                futures.add(handle.file.close());
+            }
+        }
+
+        return Future.join(futures).mapEmpty();
+    }
+
+    private Future<Handle> acquire(String path, boolean create) {
+        Handle handle = handles.get(path);
+
+        if (handle != null) {
+            handle.refCount++;
+            return Future.succeededFuture(handle);
+        }
+
+        Future<Handle> opening = openingFiles.computeIfAbsent(path, p -> open(p, create));
+
+        if (create) {
+            // a read may have been opening the file before it existed
+            opening = opening.recover(ex -> handles.containsKey(path)
+                    ? Future.succeededFuture(handles.get(path))
+                    : openingFiles.computeIfAbsent(path, p -> open(p, true)));
+        }
+
+        return opening.map(opened -> {
+            opened.refCount++;
+
+            evict();
+
+            return opened;
+        });
+    }
+
+    private void release(Handle handle) {
+        if (handle.refCount == 0) {
+            return;
+        }
+
+        handle.refCount--;
+
+        if (handle.refCount > 0) {
+            return;
+        }
+
+        if (handle.closed != null) {
+            handle.file.close().onComplete(handle.closed);
+        } else if (handles.size() > maxOpenFiles) {
+            evict();
+        }
+    }
+
+    private Future<Handle> open(String path, boolean create) {
+        FileSystem fs = vertx.fileSystem();
+        Path parent = Paths.get(path).getParent();
+
+        Future<Void> mkdirs = create && parent != null ? fs.mkdirs(parent.toString()) : Future.succeededFuture();
+
+        return mkdirs.compose(v -> fs.open(path, new OpenOptions().setRead(true).setWrite(true).setCreate(create)))
+                .map(file -> new Handle(file))
+                .onComplete(ar -> openingFiles.remove(path))
+                .onSuccess(handle -> {
+                    handles.put(path, handle);
+                    opens++;
+                });
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Handle>> iterator = handles.entrySet().iterator();
+
+        while (handles.size() > maxOpenFiles && iterator.hasNext()) {
+            var eldest = iterator.next();
+
+            if (eldest.getValue().refCount > 0) {
+                continue;
+            }
+
+            log.trace("Closing {}", eldest.getKey());
+
+            iterator.remove();
+            evictions++;
+
+            eldest.getValue()
+                    .file
+                    .close()
+                    .onFailure(ex -> log.warn("Could not close {}: {}", eldest.getKey(), ex.getMessage()));
+        }
+    }
+
+    private static class Handle {
+        private final AsyncFile file;
+
+        // number of pending operations on the file
+        private int refCount = 0;
+
+        // set if the file was closed while in use
+        private Promise<Void> closed;
+
+        private Handle(AsyncFile file) {
+            this.file = file;
+        }
+    }
+}
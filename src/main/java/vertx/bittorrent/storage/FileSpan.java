@@ -0,0 +1,17 @@
+package vertx.bittorrent.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Part of a block that is stored in a single file.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class FileSpan {
+    private final String path;
+    private final long offset;
+    private final int length;
+}
@@ -0,0 +1,246 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import lombok.extern.slf4j.Slf4j;
+import vertx.bittorrent.model.FileInfo;
+import vertx.bittorrent.model.FilePosition;
+import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.utils.HashUtils;
+
+/**
+ * Accesses files through memory mappings, so reading and writing a block is a copy from or to the page cache.
+ * Files are mapped in aligned regions on demand and the least recently used regions are dropped once the mapped size
+ * exceeds the window. Dropped regions are unmapped by the garbage collector.
+ */
+@Slf4j
+public class MappedFileStorage implements StorageBackend {
+    public static final long DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final Vertx vertx;
+    private final Torrent torrent;
+    private final String dataDir;
+
+    private final long regionSize;
+    private final long windowSize;
+
+    // mapped regions in access order
+    private final LinkedHashMap<RegionKey, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+
+    public MappedFileStorage(Vertx vertx, Torrent torrent, String dataDir) {
+        this(vertx, torrent, dataDir, DEFAULT_REGION_SIZE, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedFileStorage(Vertx vertx, Torrent torrent, String dataDir, long regionSize, long windowSize) {
+        this.vertx = vertx;
+        this.torrent = torrent;
+        this.dataDir = dataDir;
+        this.regionSize = regionSize;
+        this.windowSize = Math.max(windowSize, regionSize);
+    }
+
+    @Override
+    public Future<Buffer> readBlock(int pieceIndex, int begin, int length) {
+        return vertx.executeBlocking(
+                () -> {
+                    byte[] bytes = new byte[length];
+
+                    transfer(pieceIndex, begin, length, false, (region, regionOffset, offset, count) -> {
+                        region.get(regionOffset, bytes, offset, count);
+                    });
+
+                    return Buffer.buffer(bytes);
+                },
+                false);
+    }
+
+    @Override
+    public Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync) {
+        return vertx.executeBlocking(
+                () -> {
+                    ByteBuffer source = data.getByteBuf().nioBuffer();
+
+                    transfer(pieceIndex, begin, data.length(), true, (region, regionOffset, offset, count) -> {
+                        region.put(regionOffset, source, offset, count);
+
+                        if (sync) {
+                            region.force(regionOffset, count);
+                        }
+                    });
+
+                    return null;
+                },
+                false);
+    }
+
+    @Override
+    public Future<byte[]> hashRange(int pieceIndex, int begin, int length) {
+        return vertx.executeBlocking(
+                () -> {
+                    MessageDigest digest = HashUtils.getSha1();
+
+                    transfer(pieceIndex, begin, length, false, (region, regionOffset, offset, count) -> {
+                        digest.update(region.slice(regionOffset, count));
+                    });
+
+                    return digest.digest();
+                },
+                false);
+    }
+
+    @Override
+    public String getPath(FileInfo fileInfo) {
+        return Paths.get(dataDir, fileInfo.getPath()).toString();
+    }
+
+    @Override
+    public Future<Void> close() {
+        return vertx.executeBlocking(
+                () -> {
+                    synchronized (this) {
+                        for (var region : regions.values()) {
+                            region.force();
+                        }
+
+                        regions.clear();
+                        mappedBytes = 0;
+                    }
+
+                    return null;
+                },
+                false);
+    }
+
+    // splits a range into the mapped regions it spans
+    private void transfer(int pieceIndex, int begin, int length, boolean write, RegionConsumer consumer)
+            throws IOException {
+        int pieceOffset = begin;
+        int end = begin + length;
+
+        while (pieceOffset < end) {
+            FilePosition position = torrent.getFilePositionForPiece(pieceIndex, pieceOffset);
+            FileInfo fileInfo = position.getFileInfo();
+
+            long regionIndex = position.getOffset() / regionSize;
+            int regionOffset = (int) (position.getOffset() % regionSize);
+
+            MappedByteBuffer region = getRegion(fileInfo, regionIndex, write);
+
+            int count = Math.min(region.capacity() - regionOffset, end - pieceOffset);
+
+            consumer.accept(region, regionOffset, pieceOffset - begin, count);
+
+            pieceOffset += count;
+        }
+    }
+
+    private synchronized MappedByteBuffer getRegion(FileInfo fileInfo, long regionIndex, boolean write)
+            throws IOException {
+        RegionKey key = new RegionKey(fileInfo.getPath(), regionIndex);
+
+        MappedByteBuffer region = regions.get(key);
+
+        if (region != null) {
+            return region;
+        }
+
+        long start = regionIndex * regionSize;
+        long size = Math.min(regionSize, fileInfo.getLength() - start);
+
+        // mappings stay valid after the channel is closed, so no file handles are kept open
+        try (FileChannel channel = openChannel(fileInfo, write)) {
+            if (!write && channel.size() < start + size) {
+                throw new IOException("File " + fileInfo.getPath() + " is shorter than " + (start + size) + " bytes");
+            }
+
+            // mapping a region beyond the end of the file extends the file
+            region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+
+        regions.put(key, region);
+        mappedBytes += size;
+
+        Iterator<Map.Entry<RegionKey, MappedByteBuffer>> iterator = regions.entrySet().iterator();
+
+        while (mappedBytes > windowSize && iterator.hasNext()) {
+            var eldest = iterator.next();
+
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+
+            log.trace("Dropping mapped region {} of {}", eldest.getKey().regionIndex, eldest.getKey().path);
+
+            mappedBytes -= eldest.getValue().capacity();
+            iterator.remove();
+        }
+
+        return region;
+    }
+
+    private FileChannel openChannel(FileInfo fileInfo, boolean create) throws IOException {
+        Path filePath = Paths.get(dataDir, fileInfo.getPath());
+
+        if (create) {
+            Path parent = filePath.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+
+            return FileChannel.open(
+                    filePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+
+        // fails if the file does not exist
+        return FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @FunctionalInterface
+    private interface RegionConsumer {
+        void accept(MappedByteBuffer region, int regionOffset, int offset, int count);
+    }
+
+    private static class RegionKey {
+        private final String path;
+        private final long regionIndex;
+
+        private RegionKey(String path, long regionIndex) {
+            this.path = path;
+            this.regionIndex = regionIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof RegionKey other) {
+                return regionIndex == other.regionIndex && path.equals(other.path);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, regionIndex);
+        }
+    }
+}
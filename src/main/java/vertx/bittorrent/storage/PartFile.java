@@ -0,0 +1,228 @@
+package vertx.bittorrent.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Single file holding data of pieces that belongs to skipped files. Each piece gets a slot with the length of a piece
+ * in which data is stored at its offset inside the piece. The file starts with a header mapping pieces to slots, so the
+ * data survives restarts.
+ *
+ * <p>The file is created on the first write. All methods block and have to be called from worker threads.
+ */
+public class PartFile {
+    // header and slots start at multiples of this size
+    private static final int ALIGNMENT = 4096;
+
+    private static final int NO_SLOT = -1;
+
+    private final Path path;
+    private final int piecesCount;
+    private final int pieceLength;
+
+    private final long headerSize;
+
+    // slot of each piece or -1
+    private final int[] slots;
+
+    // slots of freed pieces that can be reused
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int slotsCount = 0;
+    private int usedCount = 0;
+
+    private FileChannel channel;
+
+    public PartFile(Path path, int piecesCount, int pieceLength) throws IOException {
+        this.path = path;
+        this.piecesCount = piecesCount;
+        this.pieceLength = pieceLength;
+        this.headerSize = align(8 + 4L * piecesCount);
+        this.slots = new int[piecesCount];
+
+        Arrays.fill(slots, NO_SLOT);
+
+        if (Files.exists(path)) {
+            readHeader();
+        }
+    }
+
+    public synchronized boolean hasPiece(int pieceIndex) {
+        return slots[pieceIndex] != NO_SLOT;
+    }
+
+    public synchronized boolean isEmpty() {
+        return usedCount == 0;
+    }
+
+    public synchronized void read(int pieceIndex, int offset, ByteBuffer buffer) throws IOException {
+        int slot = slots[pieceIndex];
+
+        if (slot == NO_SLOT) {
+            throw new IOException("Piece " + pieceIndex + " is not stored in " + path);
+        }
+
+        long position = getSlotPosition(slot) + offset;
+
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead <= 0) {
+                throw new EOFException("Could not read piece " + pieceIndex + " from " + path);
+            }
+
+            position += bytesRead;
+        }
+    }
+
+    public synchronized void write(int pieceIndex, int offset, ByteBuffer data, boolean sync) throws IOException {
+        int slot = slots[pieceIndex];
+
+        if (slot == NO_SLOT) {
+            slot = allocateSlot(pieceIndex);
+        }
+
+        long position = getSlotPosition(slot) + offset;
+
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Releases the slot of the piece after its data was moved into place.
+     */
+    public synchronized void free(int pieceIndex) throws IOException {
+        int slot = slots[pieceIndex];
+
+        if (slot == NO_SLOT) {
+            return;
+        }
+
+        slots[pieceIndex] = NO_SLOT;
+        freeSlots.push(slot);
+        usedCount--;
+
+        writeSlot(pieceIndex);
+    }
+
+    /**
+     * Closes the file and deletes it if no piece is stored anymore.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+
+        if (usedCount == 0) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private int allocateSlot(int pieceIndex) throws IOException {
+        if (channel == null) {
+            open();
+        }
+
+        int slot = freeSlots.isEmpty() ? slotsCount++ : freeSlots.pop();
+
+        slots[pieceIndex] = slot;
+        usedCount++;
+
+        writeSlot(pieceIndex);
+
+        return slot;
+    }
+
+    private long getSlotPosition(int slot) {
+        return headerSize + (long) slot * pieceLength;
+    }
+
+    private void open() throws IOException {
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        boolean exists = Files.exists(path);
+
+        channel = FileChannel.open(
+                path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        if (!exists) {
+            ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+
+            header.putInt(piecesCount);
+            header.putInt(pieceLength);
+
+            for (int i = 0; i < piecesCount; i++) {
+                header.putInt(NO_SLOT);
+            }
+
+            header.clear();
+
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    private void readHeader() throws IOException {
+        open();
+
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) <= 0) {
+                throw new EOFException("Header of " + path + " is incomplete");
+            }
+        }
+
+        header.flip();
+
+        if (header.getInt() != piecesCount || header.getInt() != pieceLength) {
+            throw new IOException("Part file " + path + " does not match the torrent");
+        }
+
+        boolean[] usedSlots = new boolean[piecesCount];
+
+        for (int i = 0; i < piecesCount; i++) {
+            int slot = header.getInt();
+
+            if (slot >= 0 && slot < piecesCount) {
+                slots[i] = slot;
+                usedSlots[slot] = true;
+                usedCount++;
+                slotsCount = Math.max(slotsCount, slot + 1);
+            }
+        }
+
+        for (int slot = slotsCount - 1; slot >= 0; slot--) {
+            if (!usedSlots[slot]) {
+                freeSlots.push(slot);
+            }
+        }
+    }
+
+    private void writeSlot(int pieceIndex) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(4).putInt(0, slots[pieceIndex]);
+
+        channel.write(entry, 8 + 4L * pieceIndex);
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
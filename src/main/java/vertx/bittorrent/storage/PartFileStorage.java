@@ -0,0 +1,321 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import vertx.bittorrent.HashingService;
+import vertx.bittorrent.model.FileInfo;
+import vertx.bittorrent.model.FilePosition;
+import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.utils.HashUtils;
+
+/**
+ * Keeps data of skipped files in a {@link PartFile} instead of creating those files. Pieces on the boundary between a
+ * wanted and a skipped file still have to be downloaded completely to verify them, but only the bytes of the wanted
+ * file end up in the files of the torrent. The stored bytes are moved into place if a skipped file is selected again.
+ *
+ * <p>Reads and writes go through the delegate or are done on worker threads, so wrapping this storage in a
+ * {@link ScheduledStorage} schedules part file access like any other. Moving data out of the part file when a file is
+ * selected again is not scheduled, as it happens at most once per file and is requested by the user.
+ */
+@Slf4j
+public class PartFileStorage implements StorageBackend {
+    private final Vertx vertx;
+    private final Torrent torrent;
+    private final StorageBackend delegate;
+    private final HashingService hashingService;
+    private final String path;
+
+    private final boolean[] skippedFiles;
+    private int skippedCount = 0;
+
+    // opened on first use so it is never read on the event loop
+    private Future<PartFile> partFile;
+
+    public PartFileStorage(
+            Vertx vertx, Torrent torrent, StorageBackend delegate, HashingService hashingService, String path) {
+        this.vertx = vertx;
+        this.torrent = torrent;
+        this.delegate = delegate;
+        this.hashingService = hashingService;
+        this.path = path;
+        this.skippedFiles = new boolean[torrent.getFiles().size()];
+    }
+
+    @Override
+    public Future<Buffer> readBlock(int pieceIndex, int begin, int length) {
+        if (!overlapsSkippedFile(pieceIndex, begin, length)) {
+            return delegate.readBlock(pieceIndex, begin, length);
+        }
+
+        return getPartFile().compose(partFile -> {
+            Buffer buffer = Buffer.buffer(length);
+
+            List<Future<Void>> futures = new ArrayList<>();
+
+            for (Span span : getSpans(pieceIndex, begin, length)) {
+                Future<Buffer> data;
+
+                if (span.skipped && partFile.hasPiece(span.pieceIndex)) {
+                    data = vertx.executeBlocking(
+                            () -> {
+                                ByteBuffer bytes = ByteBuffer.allocate(span.length);
+                                partFile.read(span.pieceIndex, span.begin, bytes);
+                                return Buffer.buffer(bytes.array());
+                            },
+                            false);
+                } else if (span.skipped) {
+                    // skipped files may still contain data written before they were skipped, but reading must not
+                    // create them
+                    String filePath = delegate.getPath(torrent.getFiles().get(span.fileIndex));
+
+                    data = vertx.fileSystem()
+                            .exists(filePath)
+                            .compose(exists -> exists
+                                    ? delegate.readBlock(span.pieceIndex, span.begin, span.length)
+                                    : Future.failedFuture(new NoSuchFileException(filePath)));
+                } else {
+                    data = delegate.readBlock(span.pieceIndex, span.begin, span.length);
+                }
+
+                futures.add(data.map(bytes -> {
+                    buffer.setBuffer(span.offset, bytes);
+                    return null;
+                }));
+            }
+
+            return Future.all(futures).map(buffer);
+        });
+    }
+
+    @Override
+    public Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync) {
+        if (!overlapsSkippedFile(pieceIndex, begin, data.length())) {
+            return delegate.writeBlock(pieceIndex, begin, data, sync);
+        }
+
+        return getPartFile().compose(partFile -> {
+            List<Future<Void>> futures = new ArrayList<>();
+
+            for (Span span : getSpans(pieceIndex, begin, data.length())) {
+                Buffer slice = data.slice(span.offset, span.offset + span.length);
+
+                if (span.skipped) {
+                    futures.add(vertx.executeBlocking(
+                            () -> {
+                                partFile.write(span.pieceIndex, span.begin, slice.getByteBuf().nioBuffer(), sync);
+                                return null;
+                            },
+                            false));
+                } else {
+                    futures.add(delegate.writeBlock(span.pieceIndex, span.begin, slice, sync));
+                }
+            }
+
+            return Future.all(futures).mapEmpty();
+        });
+    }
+
+    @Override
+    public Future<byte[]> hashRange(int pieceIndex, int begin, int length) {
+        if (!overlapsSkippedFile(pieceIndex, begin, length)) {
+            return delegate.hashRange(pieceIndex, begin, length);
+        }
+
+        // only boundary pieces are hashed from memory
+        return readBlock(pieceIndex, begin, length).compose(data -> {
+            MessageDigest digest = HashUtils.getSha1();
+
+            return hashingService
+                    .update(Future.succeededFuture(), digest, data.getByteBuf().nioBuffer())
+                    .map(v -> digest.digest());
+        });
+    }
+
+    @Override
+    public String getPath(FileInfo fileInfo) {
+        return delegate.getPath(fileInfo);
+    }
+
+    /**
+     * Data of skipped files is written to the part file. Data of a file that is selected again is moved from the part
+     * file into the file.
+     */
+    @Override
+    public Future<Void> setFileSkipped(int fileIndex, boolean skipped) {
+        if (skippedFiles[fileIndex] == skipped) {
+            return Future.succeededFuture();
+        }
+
+        skippedFiles[fileIndex] = skipped;
+        skippedCount += skipped ? 1 : -1;
+
+        if (skipped || torrent.getFiles().get(fileIndex).getLength() == 0) {
+            return Future.succeededFuture();
+        }
+
+        return getPartFile().compose(partFile -> movePieces(partFile, fileIndex));
+    }
+
+    @Override
+    public Future<Void> close() {
+        Future<Void> closePartFile = partFile == null
+                ? Future.succeededFuture()
+                : partFile.compose(file -> vertx.executeBlocking(
+                        () -> {
+                            file.close();
+                            return null;
+                        },
+                        false));
+
+        return Future.join(closePartFile, delegate.close()).mapEmpty();
+    }
+
+    private Future<PartFile> getPartFile() {
+        if (partFile == null) {
+            int piecesCount = (int) torrent.getPiecesCount();
+            int pieceLength = (int) torrent.getPieceLength();
+
+            partFile = vertx.executeBlocking(() -> new PartFile(Paths.get(path), piecesCount, pieceLength), false);
+        }
+
+        return partFile;
+    }
+
+    private Future<Void> movePieces(PartFile partFile, int fileIndex) {
+        long fileStart = 0;
+        for (int i = 0; i < fileIndex; i++) {
+            fileStart += torrent.getFiles().get(i).getLength();
+        }
+
+        long fileEnd = fileStart + torrent.getFiles().get(fileIndex).getLength();
+
+        int firstPiece = (int) (fileStart / torrent.getPieceLength());
+        int lastPiece = (int) ((fileEnd - 1) / torrent.getPieceLength());
+
+        Future<Void> future = Future.succeededFuture();
+
+        for (int i = firstPiece; i <= lastPiece; i++) {
+            int pieceIndex = i;
+
+            future = future.compose(v -> partFile.hasPiece(pieceIndex)
+                    ? movePiece(partFile, pieceIndex, fileIndex)
+                    : Future.succeededFuture());
+        }
+
+        return future;
+    }
+
+    // copies the bytes of the file from the slot of the piece and frees the slot if no skipped file needs it anymore
+    private Future<Void> movePiece(PartFile partFile, int pieceIndex, int fileIndex) {
+        List<Span> spans = getSpans(pieceIndex, 0, (int) torrent.getLengthForPiece(pieceIndex));
+
+        List<Future<Void>> futures = new ArrayList<>();
+
+        for (Span span : spans) {
+            if (span.fileIndex != fileIndex) {
+                continue;
+            }
+
+            futures.add(vertx.<Buffer>executeBlocking(
+                            () -> {
+                                ByteBuffer bytes = ByteBuffer.allocate(span.length);
+                                partFile.read(pieceIndex, span.begin, bytes);
+                                return Buffer.buffer(bytes.array());
+                            },
+                            false)
+                    .compose(data -> delegate.writeBlock(pieceIndex, span.begin, data, true)));
+        }
+
+        boolean stillNeeded = spans.stream().anyMatch(span -> span.skipped);
+
+        log.debug("Moving piece {} from part file into {}", pieceIndex, torrent.getFiles().get(fileIndex).getPath());
+
+        return Future.all(futures).compose(v -> stillNeeded
+                ? Future.succeededFuture()
+                : vertx.executeBlocking(
+                        () -> {
+                            partFile.free(pieceIndex);
+                            return null;
+                        },
+                        false));
+    }
+
+    private boolean overlapsSkippedFile(int pieceIndex, int begin, int length) {
+        if (skippedCount == 0) {
+            return false;
+        }
+
+        for (Span span : getSpans(pieceIndex, begin, length)) {
+            if (span.skipped) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Splits the range at file boundaries. The range may span multiple pieces, e.g. pieces merged by the write cache,
+     * so ranges of skipped files are also split at piece boundaries as each piece has its own slot in the part file.
+     */
+    private List<Span> getSpans(int pieceIndex, int begin, int length) {
+        List<Span> spans = new ArrayList<>();
+
+        long pieceLength = torrent.getPieceLength();
+
+        int offset = 0;
+
+        while (offset < length) {
+            long torrentOffset = pieceIndex * pieceLength + begin + offset;
+
+            int spanPiece = (int) (torrentOffset / pieceLength);
+            int spanBegin = (int) (torrentOffset % pieceLength);
+
+            FilePosition position = torrent.getFilePositionForPiece(spanPiece, spanBegin);
+            FileInfo fileInfo = position.getFileInfo();
+            boolean skipped = skippedFiles[position.getFileIndex()];
+
+            long spanLength = Math.min(fileInfo.getLength() - position.getOffset(), length - offset);
+
+            if (skipped) {
+                spanLength = Math.min(spanLength, pieceLength - spanBegin);
+            }
+
+            spans.add(new Span(position.getFileIndex(), spanPiece, spanBegin, offset, (int) spanLength, skipped));
+
+            offset += (int) spanLength;
+        }
+
+        return spans;
+    }
+
+    // range inside one file, starting inside a piece
+    private static class Span {
+        private final int fileIndex;
+        private final int pieceIndex;
+        private final int begin;
+
+        // offset inside the range that was split
+        private final int offset;
+
+        private final int length;
+        private final boolean skipped;
+
+        private Span(int fileIndex, int pieceIndex, int begin, int offset, int length, boolean skipped) {
+            this.fileIndex = fileIndex;
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
+            this.offset = offset;
+            this.length = length;
+            this.skipped = skipped;
+        }
+    }
+}
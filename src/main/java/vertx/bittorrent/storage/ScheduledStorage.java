@@ -0,0 +1,90 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import java.util.function.Supplier;
+import vertx.bittorrent.model.FileInfo;
+import vertx.bittorrent.model.FilePosition;
+import vertx.bittorrent.model.Torrent;
+import vertx.bittorrent.storage.DiskScheduler.Priority;
+
+/**
+ * Passes all disk operations of a torrent through the {@link DiskScheduler} of the device holding its files. Reads
+ * and ranges sent straight from the files are treated as uploads and hashing ranges as rechecks.
+ */
+public class ScheduledStorage implements StorageBackend {
+    private final Vertx vertx;
+    private final Torrent torrent;
+    private final StorageBackend delegate;
+    private final DiskScheduler scheduler;
+
+    // determined on first use, all files of a torrent are assumed to be on the same device
+    private Future<Object> device;
+
+    public ScheduledStorage(Vertx vertx, Torrent torrent, StorageBackend delegate, DiskScheduler scheduler) {
+        this.vertx = vertx;
+        this.torrent = torrent;
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Future<Buffer> readBlock(int pieceIndex, int begin, int length) {
+        return schedule(
+                Priority.Upload, pieceIndex, begin, length, () -> delegate.readBlock(pieceIndex, begin, length));
+    }
+
+    @Override
+    public Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync) {
+        return schedule(
+                Priority.Write,
+                pieceIndex,
+                begin,
+                data.length(),
+                () -> delegate.writeBlock(pieceIndex, begin, data, sync));
+    }
+
+    @Override
+    public Future<byte[]> hashRange(int pieceIndex, int begin, int length) {
+        return schedule(
+                Priority.Recheck, pieceIndex, begin, length, () -> delegate.hashRange(pieceIndex, begin, length));
+    }
+
+    @Override
+    public <T> Future<T> readDirect(int pieceIndex, int begin, int length, Supplier<Future<T>> action) {
+        return schedule(Priority.Upload, pieceIndex, begin, length, action);
+    }
+
+    @Override
+    public Future<Void> setFileSkipped(int fileIndex, boolean skipped) {
+        return delegate.setFileSkipped(fileIndex, skipped);
+    }
+
+    @Override
+    public String getPath(FileInfo fileInfo) {
+        return delegate.getPath(fileInfo);
+    }
+
+    @Override
+    public Future<Void> close() {
+        return delegate.close();
+    }
+
+    private <T> Future<T> schedule(
+            Priority priority, int pieceIndex, int begin, int length, Supplier<Future<T>> action) {
+        FilePosition position = torrent.getFilePositionForPiece(pieceIndex, begin);
+        String path = delegate.getPath(position.getFileInfo());
+
+        return getDevice()
+                .compose(device -> scheduler.submit(device, priority, path, position.getOffset(), length, action));
+    }
+
+    private Future<Object> getDevice() {
+        if (device == null) {
+            device = DiskScheduler.getDevice(vertx, delegate.getPath(torrent.getFiles().get(0)));
+        }
+
+        return device;
+    }
+}
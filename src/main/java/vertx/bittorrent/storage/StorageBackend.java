@@ -0,0 +1,55 @@
+package vertx.bittorrent.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import java.util.function.Supplier;
+import vertx.bittorrent.model.FileInfo;
+
+/**
+ * Access to the data of a torrent. Positions are given relative to a piece and may span multiple files.
+ */
+public interface StorageBackend {
+    Future<Buffer> readBlock(int pieceIndex, int begin, int length);
+
+    /**
+     * Writes data starting at the beginning of the piece. The data may span multiple consecutive pieces.
+     *
+     * @param sync whether the future completes only after the data was flushed to the storage device
+     */
+    default Future<Void> writePiece(int pieceIndex, Buffer data, boolean sync) {
+        return writeBlock(pieceIndex, 0, data, sync);
+    }
+
+    /**
+     * Writes data starting at an offset inside the piece, e.g. single blocks of pieces that are not complete yet.
+     */
+    Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync);
+
+    /**
+     * Computes the SHA-1 hash of a range without blocking the event loop. Fails if the range is not completely
+     * available, e.g. because a file does not exist yet.
+     */
+    Future<byte[]> hashRange(int pieceIndex, int begin, int length);
+
+    /**
+     * Called when a file is skipped or selected again. Backends may keep the data of skipped files elsewhere.
+     */
+    default Future<Void> setFileSkipped(int fileIndex, boolean skipped) {
+        return Future.succeededFuture();
+    }
+
+    /**
+     * Path of the file on disk, e.g. to send its content without copying it.
+     */
+    String getPath(FileInfo fileInfo);
+
+    /**
+     * Runs an action reading the range straight from the files instead of through this storage, e.g. to send it without
+     * copying it. Storages ordering disk access run it like a read.
+     */
+    default <T> Future<T> readDirect(int pieceIndex, int begin, int length, Supplier<Future<T>> action) {
+        return action.get();
+    }
+
+    Future<Void> close();
+}
@@ -0,0 +1,140 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.ActivePieces;
+import vertx.bittorrent.PieceBufferPool;
+import vertx.bittorrent.PiecePicker;
+import vertx.bittorrent.PieceState;
+import vertx.bittorrent.PieceState.BlockState;
+
+public class ActivePiecesTest {
+    private static final int BLOCK_SIZE = 16384;
+
+    private final PiecePicker piecePicker = new PiecePicker(10);
+
+    private final ActivePieces activePieces = new ActivePieces(10, new PieceBufferPool(0), piecePicker);
+
+    @Test
+    @DisplayName("should share the state of a piece between all peers downloading it")
+    void testSharedPiece() {
+        PieceState pieceState = activePieces.activate(3, 4 * BLOCK_SIZE);
+
+        assertThat(activePieces.activate(3, 4 * BLOCK_SIZE)).isSameAs(pieceState);
+        assertThat(activePieces.get(3)).isSameAs(pieceState);
+        assertThat(activePieces.isActive(3)).isTrue();
+        assertThat(activePieces.getActiveCount()).isEqualTo(1);
+
+        // two peers request different blocks of the same piece
+        pieceState.requestBlock(pieceState.nextQueuedBlock());
+        pieceState.requestBlock(pieceState.nextQueuedBlock());
+
+        assertThat(pieceState.nextQueuedBlock()).isEqualTo(2);
+        assertThat(pieceState.getQueuedBlocksCount()).isEqualTo(2);
+
+        activePieces.remove(3);
+
+        assertThat(activePieces.isActive(3)).isFalse();
+        assertThat(activePieces.getPieces()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("should queue blocks again when the peer they were requested from chokes")
+    void testReleaseOnChoke() {
+        PieceState pieceState = activePieces.activate(0, 3 * BLOCK_SIZE);
+
+        // first peer requests all blocks, second peer duplicates the last one in end game
+        for (int i = 0; i < 3; i++) {
+            pieceState.requestBlock(i);
+        }
+
+        pieceState.requestBlock(2);
+
+        assertThat(pieceState.hasQueuedBlocks()).isFalse();
+
+        // first peer chokes and its pending requests are released
+        for (int i = 0; i < 3; i++) {
+            pieceState.releaseBlock(i);
+        }
+
+        assertThat(pieceState.getBlockState(0)).isEqualTo(BlockState.Queued);
+        assertThat(pieceState.getBlockState(1)).isEqualTo(BlockState.Queued);
+        assertThat(pieceState.getQueuedBlocksCount()).isEqualTo(2);
+
+        // still requested from the second peer
+        assertThat(pieceState.getBlockState(2)).isEqualTo(BlockState.Requested);
+        assertThat(pieceState.getRequestCount(2)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("should count duplicate requests in end game and cancel them once the block arrived")
+    void testEndGame() {
+        PieceState pieceState = activePieces.activate(0, 2 * BLOCK_SIZE);
+
+        pieceState.requestBlock(0);
+        pieceState.requestBlock(1);
+
+        // end game requests the same blocks from two more peers
+        pieceState.requestBlock(1);
+        pieceState.requestBlock(1);
+
+        assertThat(pieceState.getRequestCount(1)).isEqualTo(3);
+        assertThat(pieceState.getQueuedBlocksCount()).isZero();
+
+        pieceState.completeBlock(1, Buffer.buffer(new byte[BLOCK_SIZE]), null);
+        pieceState.releaseBlock(1);
+
+        // the other requests are cancelled like the controller does once the block arrived
+        assertThat(pieceState.getRequestCount(1)).isEqualTo(2);
+
+        pieceState.releaseBlock(1);
+        pieceState.releaseBlock(1);
+
+        assertThat(pieceState.getRequestCount(1)).isZero();
+        assertThat(pieceState.getBlockState(1)).isEqualTo(BlockState.Downloaded);
+        assertThat(pieceState.getQueuedBlocksCount()).isZero();
+        assertThat(pieceState.isCompleted()).isFalse();
+
+        pieceState.completeBlock(0, Buffer.buffer(new byte[BLOCK_SIZE]), null);
+        pieceState.releaseBlock(0);
+
+        assertThat(pieceState.isCompleted()).isTrue();
+
+        pieceState.release();
+    }
+
+    @Test
+    @DisplayName("should not pick pieces while they are downloaded, hashed or written")
+    void testInFlightPieces() {
+        piecePicker.incrementAvailability(3);
+        piecePicker.incrementAvailability(4);
+        piecePicker.incrementAvailability(4);
+
+        activePieces.activate(3, BLOCK_SIZE);
+
+        assertThat(piecePicker.isTracked(3)).isFalse();
+        assertThat(piecePicker.pickPiece(i -> true)).isEqualTo(4);
+
+        // downloaded and being hashed
+        activePieces.remove(3);
+        activePieces.setProcessing(3, true);
+
+        assertThat(piecePicker.isTracked(3)).isFalse();
+
+        // hash failed, the piece is picked again
+        activePieces.setProcessing(3, false);
+
+        assertThat(piecePicker.pickPiece(i -> true)).isEqualTo(3);
+
+        activePieces.activate(3, BLOCK_SIZE);
+        activePieces.remove(3);
+        activePieces.setProcessing(3, true);
+        piecePicker.setHave(3);
+        activePieces.setProcessing(3, false);
+
+        assertThat(piecePicker.isTracked(3)).isFalse();
+    }
+}
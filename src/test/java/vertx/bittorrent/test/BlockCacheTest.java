@@ -0,0 +1,67 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.BlockCache;
+import vertx.bittorrent.ProtocolHandler;
+import vertx.bittorrent.model.HashKey;
+
+public class BlockCacheTest {
+    private final HashKey infoHash = HashKey.random();
+
+    @Test
+    @DisplayName("should keep blocks read more than once during a scan")
+    void testScanResistance() {
+        BlockCache cache = new BlockCache(100);
+
+        cache.put(infoHash, 0, 0, Buffer.buffer(new byte[10]));
+
+        assertThat(cache.get(infoHash, 0, 0)).isNotNull();
+
+        // read every block once
+        for (int i = 1; i <= 20; i++) {
+            cache.put(infoHash, i, 0, Buffer.buffer(new byte[10]));
+        }
+
+        assertThat(cache.contains(infoHash, 0, 0)).isTrue();
+        assertThat(cache.contains(infoHash, 1, 0)).isFalse();
+        assertThat(cache.getSize()).isLessThanOrEqualTo(100L);
+        assertThat(cache.getEvictions()).isEqualTo(11L);
+    }
+
+    @Test
+    @DisplayName("should count hits and misses")
+    void testCounters() {
+        BlockCache cache = new BlockCache(100);
+
+        assertThat(cache.get(infoHash, 0, 0)).isNull();
+
+        cache.putBlocks(infoHash, 0, 0, Buffer.buffer(new byte[20]));
+
+        assertThat(cache.get(infoHash, 0, 0)).isNotNull();
+        assertThat(cache.getHits()).isEqualTo(1L);
+        assertThat(cache.getMisses()).isEqualTo(1L);
+        assertThat(cache.getBlockCount()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("should remove all blocks of a piece")
+    void testRemovePiece() {
+        BlockCache cache = new BlockCache(ProtocolHandler.MAX_BLOCK_SIZE * 4L);
+
+        int pieceLength = ProtocolHandler.MAX_BLOCK_SIZE * 2;
+
+        cache.putBlocks(infoHash, 0, 0, Buffer.buffer(new byte[pieceLength]));
+        cache.putBlocks(infoHash, 1, 0, Buffer.buffer(new byte[pieceLength]));
+
+        cache.removePiece(infoHash, 0, pieceLength);
+
+        assertThat(cache.contains(infoHash, 0, 0)).isFalse();
+        assertThat(cache.contains(infoHash, 0, ProtocolHandler.MAX_BLOCK_SIZE)).isFalse();
+        assertThat(cache.contains(infoHash, 1, 0)).isTrue();
+        assertThat(cache.getSize()).isEqualTo(pieceLength);
+    }
+}
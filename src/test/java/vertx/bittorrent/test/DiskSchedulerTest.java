@@ -0,0 +1,52 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.storage.DiskScheduler;
+import vertx.bittorrent.storage.DiskScheduler.Priority;
+
+public class DiskSchedulerTest {
+    @Test
+    @DisplayName("should serve uploads first, writes in file order and rechecks last")
+    void testOrder() {
+        DiskScheduler scheduler = new DiskScheduler(1, 250);
+
+        List<String> order = new ArrayList<>();
+
+        // keeps the device busy while the other operations are queued
+        Promise<Void> first = Promise.promise();
+        scheduler.submit("disk", Priority.Upload, "a", 0, 100, first::future);
+
+        submit(scheduler, order, Priority.Recheck, "a", 0);
+        submit(scheduler, order, Priority.Write, "b", 0);
+        submit(scheduler, order, Priority.Write, "a", 300);
+        submit(scheduler, order, Priority.Write, "a", 100);
+        submit(scheduler, order, Priority.Upload, "b", 500);
+
+        assertThat(order).isEmpty();
+        assertThat(scheduler.getQueuedCount()).isEqualTo(5);
+        assertThat(scheduler.getQueuedWriteBytes()).isEqualTo(300);
+        assertThat(scheduler.isCongested()).isTrue();
+
+        first.complete();
+
+        assertThat(order).containsExactly("Upload b 500", "Write a 100", "Write a 300", "Write b 0", "Recheck a 0");
+        assertThat(scheduler.getQueuedCount()).isZero();
+        assertThat(scheduler.getQueuedWriteBytes()).isZero();
+        assertThat(scheduler.isCongested()).isFalse();
+    }
+
+    private static void submit(
+            DiskScheduler scheduler, List<String> order, Priority priority, String path, long offset) {
+        scheduler.submit("disk", priority, path, offset, 100, () -> {
+            order.add(priority + " " + path + " " + offset);
+            return Future.succeededFuture();
+        });
+    }
+}
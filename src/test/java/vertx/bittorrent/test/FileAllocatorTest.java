@@ -0,0 +1,50 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.storage.AllocationMode;
+import vertx.bittorrent.storage.FileAllocator;
+
+public class FileAllocatorTest {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should extend files without overwriting existing data")
+    void testAllocate() throws Exception {
+        Path file = dataDir.resolve("subdir").resolve("file");
+
+        AtomicLong allocated = new AtomicLong();
+
+        FileAllocator.allocate(file, 1000, AllocationMode.Sparse, allocated::addAndGet);
+
+        assertThat(Files.size(file)).isEqualTo(1000);
+        assertThat(allocated.get()).isEqualTo(1000);
+
+        Files.write(file, new byte[] {1, 2, 3}, StandardOpenOption.WRITE);
+
+        allocated.set(0);
+        FileAllocator.allocate(file, 3_000_000, AllocationMode.Full, allocated::addAndGet);
+
+        byte[] bytes = Files.readAllBytes(file);
+
+        assertThat(bytes).hasSize(3_000_000);
+        assertThat(bytes[0]).isEqualTo((byte) 1);
+        assertThat(bytes[2_999_999]).isZero();
+        assertThat(allocated.get()).isEqualTo(3_000_000);
+
+        // already allocated
+        allocated.set(0);
+        FileAllocator.allocate(file, 3_000_000, AllocationMode.Full, allocated::addAndGet);
+
+        assertThat(allocated.get()).isEqualTo(3_000_000);
+        assertThat(Files.readAllBytes(file)[1]).isEqualTo((byte) 2);
+    }
+}
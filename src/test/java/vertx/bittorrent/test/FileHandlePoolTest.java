@@ -0,0 +1,67 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.storage.AsyncFileStorage;
+import vertx.bittorrent.storage.FileHandlePool;
+import vertx.bittorrent.storage.StorageBackend;
+
+public class FileHandlePoolTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should close least recently used files when too many files are open")
+    void testEviction() throws Exception {
+        FileHandlePool pool = new FileHandlePool(vertx, 1);
+
+        StorageBackend storage = new AsyncFileStorage(vertx, torrent, dataDir.toString(), pool);
+
+        // whole torrent so writes span all files
+        await(storage.writePiece(0, Buffer.buffer(new byte[(int) torrent.getLength()]), true));
+        await(storage.readBlock(3, 100, 20_000));
+        await(storage.close());
+
+        // files written at the same time are all kept open until the writes completed
+        assertThat(pool.getOpens()).isGreaterThanOrEqualTo(torrent.getFiles().size());
+        assertThat(pool.getEvictions()).isEqualTo(pool.getOpens() - 1);
+        assertThat(pool.getOpenCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("should not create files when reading and close files in use once they were released")
+    void testClose() throws Exception {
+        FileHandlePool pool = new FileHandlePool(vertx, 16);
+
+        Path file = dataDir.resolve("file");
+
+        Future<Buffer> read = pool.withFile(file.toString(), false, f -> f.read(Buffer.buffer(1), 0, 0, 1));
+
+        await(read.otherwiseEmpty());
+
+        assertThat(read.failed()).isTrue();
+        assertThat(Files.exists(file)).isFalse();
+
+        AtomicReference<Future<Void>> close = new AtomicReference<>();
+
+        // the write fails if the file is closed right away
+        await(pool.withFile(file.toString(), true, f -> {
+            close.set(pool.close(List.of(file.toString())));
+            return f.write(Buffer.buffer("data"), 0);
+        }));
+
+        await(close.get());
+
+        assertThat(pool.getOpenCount()).isZero();
+        assertThat(Files.readString(file)).isEqualTo("data");
+    }
+}
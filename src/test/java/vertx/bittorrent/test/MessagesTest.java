@@ -121,6 +121,14 @@ public class MessagesTest {
         assertThat(bytes).containsExactly(0, 0, 0, 12, 7, 0, 0, 0, 2, 0, 0, 0, 4, -1, 0, 1);
     }
 
+    @Test
+    @DisplayName("should write piece message header")
+    void writePieceMessageHeaderTest() {
+        byte[] bytes = PieceMessage.header(2, 4, 3).getBytes();
+
+        assertThat(bytes).containsExactly(0, 0, 0, 12, 7, 0, 0, 0, 2, 0, 0, 0, 4);
+    }
+
     @Test
     @DisplayName("should write choke message")
     void writeChokeMessageTest() {
@@ -0,0 +1,91 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.HashingService;
+import vertx.bittorrent.storage.AsyncFileStorage;
+import vertx.bittorrent.storage.PartFileStorage;
+import vertx.bittorrent.storage.StorageBackend;
+import vertx.bittorrent.utils.HashUtils;
+
+public class PartFileStorageTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should keep data of skipped files in the part file until they are selected")
+    void testSkippedFile() throws Exception {
+        testPartFile(false);
+    }
+
+    @Test
+    @DisplayName("should split writes spanning multiple pieces between the slots of the part file")
+    void testMergedWrites() throws Exception {
+        testPartFile(true);
+    }
+
+    private void testPartFile(boolean mergedWrites) throws Exception {
+        Path partFile = dataDir.resolve(".parts");
+
+        StorageBackend storage = new PartFileStorage(
+                vertx,
+                torrent,
+                new AsyncFileStorage(vertx, torrent, dataDir.toString()),
+                new HashingService(vertx, 1, 0),
+                partFile.toString());
+
+        await(storage.setFileSkipped(1, true));
+
+        int pieceLength = (int) torrent.getPieceLength();
+
+        byte[] bytes = new byte[(int) torrent.getLength()];
+        new Random(42).nextBytes(bytes);
+
+        Buffer data = Buffer.buffer(bytes);
+
+        if (mergedWrites) {
+            // like adjacent pieces merged by the write cache
+            await(storage.writePiece(0, data, true));
+        } else {
+            for (int i = 0; i < torrent.getPiecesCount(); i++) {
+                int length = (int) torrent.getLengthForPiece(i);
+
+                await(storage.writePiece(i, data.getBuffer(i * pieceLength, i * pieceLength + length), true));
+            }
+        }
+
+        Path skippedFile = Path.of(storage.getPath(torrent.getFiles().get(1)));
+        long skippedStart = torrent.getFiles().get(0).getLength();
+        long skippedLength = torrent.getFiles().get(1).getLength();
+
+        assertThat(skippedFile).doesNotExist();
+        assertThat(partFile).exists();
+
+        // pieces overlapping the skipped file are read back from the part file and the other files
+        int firstPiece = (int) (skippedStart / pieceLength);
+        int lastPiece = (int) ((skippedStart + skippedLength - 1) / pieceLength);
+
+        for (int i : new int[] {firstPiece, firstPiece + 1, lastPiece}) {
+            int length = (int) torrent.getLengthForPiece(i);
+
+            assertThat(await(storage.hashRange(i, 0, length)))
+                    .isEqualTo(HashUtils.sha1(data.getBytes(i * pieceLength, i * pieceLength + length)));
+        }
+
+        await(storage.setFileSkipped(1, false));
+
+        assertThat(Files.readAllBytes(skippedFile))
+                .isEqualTo(data.getBytes((int) skippedStart, (int) (skippedStart + skippedLength)));
+
+        await(storage.close());
+
+        assertThat(partFile).doesNotExist();
+    }
+}
@@ -0,0 +1,63 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import vertx.bittorrent.PeerConnection;
+import vertx.bittorrent.messages.PieceMessage;
+import vertx.bittorrent.model.Peer;
+import vertx.bittorrent.storage.FileSpan;
+
+public class PeerConnectionTest {
+    private final NetSocket socket = mock(NetSocket.class);
+
+    private final PeerConnection connection =
+            new PeerConnection(socket, null, null, new Peer(SocketAddress.inetSocketAddress(6881, "127.0.0.1")));
+
+    @Test
+    @DisplayName("should send the header of a block followed by the regions of its files")
+    void testPieceFromFiles() {
+        when(socket.write(any(Buffer.class))).thenReturn(Future.succeededFuture());
+        when(socket.sendFile(anyString(), anyLong(), anyLong())).thenReturn(Future.succeededFuture());
+
+        Future<Void> future =
+                connection.piece(3, 16384, List.of(new FileSpan("a", 1000, 100), new FileSpan("b", 0, 50)));
+
+        assertThat(future.succeeded()).isTrue();
+        assertThat(connection.getBytesUploaded()).isEqualTo(150);
+
+        InOrder order = inOrder(socket);
+        order.verify(socket).write(PieceMessage.header(3, 16384, 150));
+        order.verify(socket).sendFile("a", 1000, 100);
+        order.verify(socket).sendFile("b", 0, 50);
+    }
+
+    @Test
+    @DisplayName("should close the connection if a file region can't be sent after the header")
+    void testPieceFromFilesFailed() {
+        when(socket.write(any(Buffer.class))).thenReturn(Future.succeededFuture());
+        when(socket.sendFile(anyString(), anyLong(), anyLong())).thenReturn(Future.failedFuture("no such file"));
+        when(socket.close()).thenReturn(Future.succeededFuture());
+
+        Future<Void> future = connection.piece(0, 0, List.of(new FileSpan("a", 0, 100)));
+
+        assertThat(future.failed()).isTrue();
+        assertThat(connection.getBytesUploaded()).isZero();
+
+        verify(socket).close();
+    }
+}
@@ -0,0 +1,67 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.PieceBufferPool;
+
+public class PieceBufferPoolTest {
+    private final PieceBufferPool pool = new PieceBufferPool(1024 * 1024);
+
+    @AfterEach
+    void checkLeaks() {
+        assertThat(pool.getAllocatedCount()).isZero();
+        assertThat(pool.getAllocatedBytes()).isZero();
+    }
+
+    @Test
+    @DisplayName("should reuse released buffers of the same size class")
+    void testReuse() {
+        Buffer first = pool.allocate(300_000);
+        first.setInt(0, 42);
+
+        assertThat(first.length()).isEqualTo(4);
+        assertThat(pool.getAllocatedBytes()).isEqualTo(512 * 1024);
+
+        pool.release(first);
+
+        Buffer second = pool.allocate(500_000);
+
+        // buffers are handed out empty
+        assertThat(second.length()).isZero();
+        assertThat(pool.getAllocations()).isEqualTo(1);
+        assertThat(pool.getReuses()).isEqualTo(1);
+
+        pool.release(second);
+    }
+
+    @Test
+    @DisplayName("should only keep released buffers up to the maximum pooled size")
+    void testMaxPooledBytes() {
+        Buffer first = pool.allocate(1024 * 1024);
+        Buffer second = pool.allocate(1024 * 1024);
+
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.getPooledBytes()).isEqualTo(1024 * 1024);
+
+        pool.clear();
+
+        assertThat(pool.getPooledBytes()).isZero();
+    }
+
+    @Test
+    @DisplayName("should reject buffers released twice")
+    void testDoubleRelease() {
+        Buffer buffer = pool.allocate(16384);
+
+        pool.release(buffer);
+
+        assertThatThrownBy(() -> pool.release(buffer)).isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,153 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.PiecePicker;
+import vertx.bittorrent.model.Bitfield;
+import vertx.bittorrent.model.FilePriority;
+
+public class PiecePickerTest {
+    @Test
+    @DisplayName("should pick rarest piece first")
+    void testRarestFirst() {
+        PiecePicker picker = new PiecePicker(4);
+
+        Bitfield seed = Bitfield.fromSize(4);
+        seed.setPiece(0);
+        seed.setPiece(1);
+        seed.setPiece(2);
+        seed.setPiece(3);
+
+        Bitfield partial = Bitfield.fromSize(4);
+        partial.setPiece(0);
+        partial.setPiece(1);
+        partial.setPiece(3);
+
+        picker.addAvailability(seed);
+        picker.addAvailability(partial);
+
+        assertThat(picker.getAvailability(0)).isEqualTo(2);
+        assertThat(picker.getAvailability(2)).isEqualTo(1);
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(2);
+
+        picker.incrementAvailability(2);
+        picker.incrementAvailability(2);
+
+        assertThat(picker.pickPiece(i -> true)).isIn(0, 1, 3);
+    }
+
+    @Test
+    @DisplayName("should not pick pieces without availability or completed pieces")
+    void testUnavailablePieces() {
+        PiecePicker picker = new PiecePicker(3);
+
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(-1);
+
+        picker.incrementAvailability(1);
+        picker.incrementAvailability(2);
+        picker.setHave(1);
+
+        assertThat(picker.isTracked(1)).isFalse();
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(2);
+        assertThat(picker.pickPiece(i -> i != 2)).isEqualTo(-1);
+
+        picker.decrementAvailability(2);
+
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(-1);
+    }
+
+    @Test
+    @DisplayName("should remove availability of disconnected peers")
+    void testRemoveAvailability() {
+        PiecePicker picker = new PiecePicker(100);
+
+        Bitfield bitfield = Bitfield.fromSize(100);
+        for (int i = 0; i < 100; i += 3) {
+            bitfield.setPiece(i);
+        }
+
+        picker.addAvailability(bitfield);
+        picker.incrementAvailability(50);
+
+        assertThat(picker.pickPiece(i -> i % 3 != 0)).isEqualTo(50);
+
+        picker.removeAvailability(bitfield);
+
+        assertThat(picker.getAvailability(0)).isZero();
+        assertThat(picker.getAvailability(50)).isEqualTo(1);
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(50);
+    }
+
+    @Test
+    @DisplayName("should pick pieces with higher priority first and never skipped pieces")
+    void testPriorities() {
+        PiecePicker picker = new PiecePicker(3);
+
+        Bitfield seed = Bitfield.fromSize(3);
+        seed.setPiece(0);
+        seed.setPiece(1);
+        seed.setPiece(2);
+
+        picker.addAvailability(seed);
+        picker.addAvailability(seed);
+        picker.incrementAvailability(2);
+        picker.decrementAvailability(1);
+
+        picker.setPriority(0, FilePriority.SKIP.getValue());
+        picker.setPriority(2, FilePriority.HIGH.getValue());
+
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(2);
+
+        picker.setHave(2);
+
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(1);
+
+        picker.setHave(1);
+
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(-1);
+    }
+
+    @Test
+    @DisplayName("should pick pieces with low priority after pieces with the default priority")
+    void testLowPriority() {
+        PiecePicker picker = new PiecePicker(2);
+
+        // the rarer piece has a low priority
+        picker.incrementAvailability(1);
+        picker.incrementAvailability(1);
+        picker.incrementAvailability(0);
+
+        picker.setPriority(0, FilePriority.LOW.getValue());
+
+        assertThat(picker.getPriority(1)).isEqualTo(FilePriority.NORMAL.getValue());
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("should drop availability of a peer that sent HAVE before a rejected BITFIELD once it closed")
+    void testHaveBeforeBitfield() {
+        PiecePicker picker = new PiecePicker(4);
+
+        Bitfield other = Bitfield.fromSize(4);
+        other.setPiece(1);
+        picker.addAvailability(other);
+
+        // pieces announced by HAVE are kept in the bitfield of the connection
+        Bitfield peerPieces = Bitfield.fromSize(4);
+        peerPieces.setPiece(1);
+        picker.incrementAvailability(1);
+
+        // the late bitfield closes the connection without being counted, closing removes what was counted
+        picker.removeAvailability(peerPieces);
+
+        assertThat(picker.getAvailability(1)).isEqualTo(1);
+        assertThat(picker.getAvailability(2)).isZero();
+
+        picker.removeAvailability(other);
+
+        assertThat(picker.getAvailability(1)).isZero();
+        assertThat(picker.pickPiece(i -> true)).isEqualTo(-1);
+    }
+}
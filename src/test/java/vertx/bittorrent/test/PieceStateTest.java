@@ -0,0 +1,113 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import java.util.Random;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.HashingService;
+import vertx.bittorrent.PeerSpeed;
+import vertx.bittorrent.PieceBufferPool;
+import vertx.bittorrent.PieceState;
+import vertx.bittorrent.utils.HashUtils;
+
+public class PieceStateTest extends TorrentTestBase {
+    @Test
+    @DisplayName("should hash blocks received out of order")
+    void testIncrementalHash() throws Exception {
+        // last block is shorter than the others
+        int pieceLength = 3 * 16384 + 1000;
+
+        byte[] bytes = new byte[pieceLength];
+        new Random(42).nextBytes(bytes);
+
+        Buffer data = Buffer.buffer(bytes);
+
+        HashingService hashingService = new HashingService(vertx, 1, 0);
+
+        PieceBufferPool bufferPool = new PieceBufferPool(0);
+
+        PieceState pieceState = new PieceState(0, pieceLength, bufferPool);
+
+        for (int blockIndex : new int[] {2, 0, 3}) {
+            int offset = pieceState.getBlockOffset(blockIndex);
+
+            pieceState.completeBlock(
+                    blockIndex, data.getBuffer(offset, offset + pieceState.getBlockSize(blockIndex)), null);
+            pieceState.updateHash(hashingService);
+        }
+
+        pieceState.completeBlock(1, data.getBuffer(16384, 2 * 16384), null);
+        pieceState.updateHash(hashingService);
+
+        assertThat(pieceState.isCompleted()).isTrue();
+        assertThat(await(pieceState.getHash())).isEqualTo(HashUtils.sha1(bytes));
+        assertThat(hashingService.getHashedBytes()).isEqualTo(pieceLength);
+
+        pieceState.release();
+
+        assertThat(bufferPool.getAllocatedCount()).isZero();
+
+        await(hashingService.close());
+    }
+
+    @Test
+    @DisplayName("should hash blocks that are not kept in memory once the blocks before them were hashed")
+    void testHashWithoutData() throws Exception {
+        int pieceLength = 3 * 16384 + 1000;
+
+        byte[] bytes = new byte[pieceLength];
+        new Random(42).nextBytes(bytes);
+
+        Buffer data = Buffer.buffer(bytes);
+
+        HashingService hashingService = new HashingService(vertx, 1, 0);
+        PieceBufferPool bufferPool = new PieceBufferPool(0);
+
+        PieceState pieceState = new PieceState(0, pieceLength, bufferPool);
+
+        for (int blockIndex : new int[] {0, 2, 3, 1}) {
+            int offset = pieceState.getBlockOffset(blockIndex);
+
+            pieceState.completeBlock(blockIndex, null);
+            pieceState.updateHash(
+                    hashingService, blockIndex, data.getBuffer(offset, offset + pieceState.getBlockSize(blockIndex)));
+        }
+
+        // blocks received out of order have to be read back
+        assertThat(pieceState.getHashedBlocksCount()).isEqualTo(1);
+
+        for (int blockIndex = 1; blockIndex < pieceState.getBlocksCount(); blockIndex++) {
+            int offset = pieceState.getBlockOffset(blockIndex);
+
+            pieceState.updateHash(
+                    hashingService, blockIndex, data.getBuffer(offset, offset + pieceState.getBlockSize(blockIndex)));
+        }
+
+        assertThat(pieceState.isCompleted()).isTrue();
+        assertThat(await(pieceState.getHash())).isEqualTo(HashUtils.sha1(bytes));
+        assertThat(bufferPool.getAllocatedCount()).isZero();
+
+        await(hashingService.close());
+    }
+
+    @Test
+    @DisplayName("should lower the speed class of a piece to the fastest peer still downloading it")
+    void testLowerSpeed() {
+        PieceState pieceState = new PieceState(0, 3 * 16384, new PieceBufferPool(0));
+        pieceState.setSpeed(PeerSpeed.Fast);
+
+        // the fast peer slowed down
+        assertThat(pieceState.lowerSpeed(PeerSpeed.Medium)).isTrue();
+        assertThat(pieceState.getSpeed()).isEqualTo(PeerSpeed.Medium);
+
+        // a faster peer does not raise the class
+        assertThat(pieceState.lowerSpeed(PeerSpeed.Fast)).isFalse();
+        assertThat(pieceState.getSpeed()).isEqualTo(PeerSpeed.Medium);
+
+        // no peer is downloading the piece anymore
+        assertThat(pieceState.lowerSpeed(PeerSpeed.Slow)).isTrue();
+        assertThat(pieceState.getSpeed()).isEqualTo(PeerSpeed.Slow);
+    }
+}
@@ -0,0 +1,59 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.RecheckJob;
+import vertx.bittorrent.RecheckService;
+import vertx.bittorrent.TorrentState;
+import vertx.bittorrent.model.Bitfield;
+
+public class RecheckServiceTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should check queued torrents and skip pieces known from resume data")
+    void testRecheck() throws Exception {
+        int piecesCount = (int) torrent.getPiecesCount();
+
+        RecheckService service = new RecheckService(vertx, 2);
+
+        TorrentState first = new TorrentState(vertx, torrent, dataDir.resolve("first").toString());
+        TorrentState second = new TorrentState(vertx, torrent, dataDir.resolve("second").toString());
+
+        // zeros do not match any piece hash
+        await(first.getStorage().writePiece(0, Buffer.buffer(new byte[(int) torrent.getLength()]), true));
+
+        Bitfield skippedPieces = Bitfield.fromSize(piecesCount);
+        skippedPieces.setPiece(0);
+        skippedPieces.setPiece(1);
+
+        List<Integer> verifiedPieces = new ArrayList<>();
+
+        RecheckJob firstJob = service.submit(first, skippedPieces).onPieceVerified(verifiedPieces::add);
+        RecheckJob secondJob = service.submit(second, Bitfield.fromSize(piecesCount));
+
+        assertThat(firstJob.getTotalCount()).isEqualTo(piecesCount - 2);
+        assertThat(firstJob.isPending(0)).isFalse();
+
+        await(Future.all(firstJob.future(), secondJob.future()));
+
+        assertThat(firstJob.getCheckedCount()).isEqualTo(piecesCount - 2);
+        assertThat(firstJob.getValidCount()).isZero();
+        assertThat(firstJob.isPending(2)).isFalse();
+        assertThat(firstJob.getProgress()).isEqualTo(1.0);
+        assertThat(verifiedPieces).isEmpty();
+
+        // files of the second torrent are missing
+        assertThat(secondJob.getCheckedCount()).isEqualTo(piecesCount);
+        assertThat(second.getBitfield().cardinality()).isZero();
+    }
+}
@@ -0,0 +1,78 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.ProtocolHandler;
+import vertx.bittorrent.RequestPipeline;
+
+public class RequestPipelineTest {
+    @Test
+    @DisplayName("should grow pipeline for fast peers with high latency")
+    void testGrowPipeline() {
+        RequestPipeline pipeline = new RequestPipeline(2, 500);
+
+        // 4 MB/s with 200 ms round trip time
+        receiveBlocks(pipeline, 0, 3_000, 250, 200);
+
+        assertThat(pipeline.getMinRtt()).isEqualTo(200);
+        assertThat(pipeline.getReceiveRate()).isBetween(3_500_000.0, 4_500_000.0);
+        assertThat(pipeline.getDepth()).isGreaterThan(12).isLessThanOrEqualTo(500);
+    }
+
+    @Test
+    @DisplayName("should shrink pipeline for slow peers")
+    void testShrinkPipeline() {
+        RequestPipeline pipeline = new RequestPipeline(2, 500);
+
+        receiveBlocks(pipeline, 0, 3_000, 250, 50);
+
+        int depth = pipeline.getDepth();
+
+        // 32 KB/s
+        receiveBlocks(pipeline, 3_000, 30_000, 2, 50);
+
+        assertThat(pipeline.getDepth()).isLessThan(depth).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("should respect pipeline bounds")
+    void testBounds() {
+        RequestPipeline pipeline = new RequestPipeline(4, 16);
+
+        receiveBlocks(pipeline, 0, 5_000, 1_000, 100);
+
+        assertThat(pipeline.getDepth()).isEqualTo(16);
+
+        pipeline.setBounds(20, 30);
+
+        assertThat(pipeline.getDepth()).isEqualTo(20);
+    }
+
+    @Test
+    @DisplayName("should derive request timeout from round trip times and shrink after timeouts")
+    void testRequestTimeout() {
+        RequestPipeline pipeline = new RequestPipeline(2, 500);
+
+        assertThat(pipeline.getRequestTimeout()).isEqualTo(10_000);
+
+        receiveBlocks(pipeline, 0, 5_000, 250, 3_000);
+
+        assertThat(pipeline.getRequestTimeout()).isBetween(3_000L, 6_000L);
+
+        int depth = pipeline.getDepth();
+        pipeline.shrink();
+
+        assertThat(pipeline.getDepth()).isEqualTo(depth / 2);
+    }
+
+    private void receiveBlocks(RequestPipeline pipeline, long start, long end, int blocksPerSecond, long rtt) {
+        long interval = 1_000 / blocksPerSecond;
+
+        for (long now = start; now < end; now += interval) {
+            pipeline.onRequestSent(now);
+            pipeline.onBlockReceived(now, rtt, ProtocolHandler.MAX_BLOCK_SIZE);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.TorrentState;
+import vertx.bittorrent.model.Bitfield;
+import vertx.bittorrent.model.ResumeData;
+
+public class ResumeDataTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should encode and decode resume data")
+    void testEncodeDecode() {
+        Bitfield bitfield = Bitfield.fromSize((int) torrent.getPiecesCount());
+        bitfield.setPiece(3);
+        bitfield.setPiece(17);
+
+        Bitfield blocks = Bitfield.fromSize(16);
+        blocks.setPiece(0);
+        blocks.setPiece(5);
+
+        ResumeData resumeData = new ResumeData(
+                torrent.getInfoHash(),
+                bitfield,
+                new long[] {9911, -1, 1000},
+                new long[] {1_700_000_000_000L, -1, 1_700_000_001_000L},
+                Map.of(8, blocks));
+
+        ResumeData decoded = ResumeData.fromBuffer(resumeData.toBuffer());
+
+        assertThat(decoded.getInfoHash()).isEqualTo(torrent.getInfoHash());
+        assertThat(decoded.getBitfield().toByteArray()).isEqualTo(bitfield.toByteArray());
+        assertThat(decoded.getFileSizes()).containsExactly(9911, -1, 1000);
+        assertThat(decoded.getFileModifiedTimes()).containsExactly(1_700_000_000_000L, -1, 1_700_000_001_000L);
+        assertThat(decoded.getPartialPieces()).containsOnlyKeys(8);
+        assertThat(decoded.getPartialPieces().get(8).toByteArray()).isEqualTo(blocks.toByteArray());
+    }
+
+    @Test
+    @DisplayName("should only take pieces of files that did not change since the resume data was saved")
+    void testCheckChangedFiles() throws Exception {
+        int lastPiece = (int) torrent.getPiecesCount() - 1;
+
+        TorrentState state = new TorrentState(vertx, torrent, dataDir.toString());
+
+        // random data that does not match any piece hash
+        byte[] bytes = new byte[(int) torrent.getLength()];
+        new Random(42).nextBytes(bytes);
+
+        await(state.getStorage().writePiece(0, Buffer.buffer(bytes), true));
+
+        state.getBitfield().setPiece(10);
+        state.getBitfield().setPiece(lastPiece);
+
+        ResumeData resumeData = await(state.createResumeData(Map.of()));
+
+        await(state.close());
+
+        TorrentState unchanged = new TorrentState(vertx, torrent, dataDir.toString());
+        Bitfield unchangedPieces = await(unchanged.applyResumeData(resumeData));
+
+        assertThat(unchangedPieces.cardinality()).isEqualTo(torrent.getPiecesCount());
+        assertThat(unchanged.getBitfield().hasPiece(10)).isTrue();
+        assertThat(unchanged.getBitfield().hasPiece(lastPiece)).isTrue();
+
+        await(unchanged.close());
+
+        Path changedFile = dataDir.resolve(torrent.getFiles().get(1).getPath());
+        Files.setLastModifiedTime(changedFile, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        TorrentState changed = new TorrentState(vertx, torrent, dataDir.toString());
+        unchangedPieces = await(changed.applyResumeData(resumeData));
+
+        // piece 10 has to be checked again
+        assertThat(unchangedPieces.hasPiece(10)).isFalse();
+        assertThat(changed.getBitfield().hasPiece(10)).isFalse();
+        assertThat(unchangedPieces.hasPiece(lastPiece)).isTrue();
+        assertThat(changed.getBitfield().hasPiece(lastPiece)).isTrue();
+
+        await(changed.close());
+    }
+}
@@ -0,0 +1,50 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.SocketAddress;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.Piece;
+import vertx.bittorrent.ProtocolHandler;
+import vertx.bittorrent.SmartBan;
+import vertx.bittorrent.model.Peer;
+
+public class SmartBanTest {
+    private final Peer honestPeer = new Peer(SocketAddress.inetSocketAddress(6881, "10.0.0.1"));
+    private final Peer corruptPeer = new Peer(SocketAddress.inetSocketAddress(6881, "10.0.0.2"));
+
+    @Test
+    @DisplayName("should ban peer that sent corrupt blocks once the piece is downloaded again")
+    void testBanCorruptPeer() {
+        SmartBan smartBan = new SmartBan(1);
+
+        Buffer validData = Buffer.buffer(new byte[2 * ProtocolHandler.MAX_BLOCK_SIZE]);
+        Buffer invalidData = validData.copy().setByte(ProtocolHandler.MAX_BLOCK_SIZE + 10, (byte) 1);
+
+        assertThat(smartBan.onPieceFailed(piece(invalidData, honestPeer, corruptPeer)))
+                .isEmpty();
+
+        assertThat(smartBan.onPieceVerified(piece(validData, honestPeer, honestPeer)))
+                .containsExactly(corruptPeer);
+
+        assertThat(smartBan.getStrikes(honestPeer)).isZero();
+        assertThat(smartBan.getStrikes(corruptPeer)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("should count failed pieces from a single peer immediately")
+    void testSinglePeer() {
+        SmartBan smartBan = new SmartBan(2);
+
+        Buffer data = Buffer.buffer(new byte[ProtocolHandler.MAX_BLOCK_SIZE]);
+
+        assertThat(smartBan.onPieceFailed(piece(data, corruptPeer))).isEmpty();
+        assertThat(smartBan.onPieceFailed(piece(data, corruptPeer))).containsExactly(corruptPeer);
+    }
+
+    private Piece piece(Buffer data, Peer... contributors) {
+        return Piece.builder().index(0).data(data).contributors(contributors).build();
+    }
+}
@@ -0,0 +1,56 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.storage.AsyncFileStorage;
+import vertx.bittorrent.storage.MappedFileStorage;
+import vertx.bittorrent.storage.StorageBackend;
+import vertx.bittorrent.utils.HashUtils;
+
+public class StorageBackendTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should read, write and hash ranges with async files")
+    void testAsyncFileStorage() throws Exception {
+        testStorage(new AsyncFileStorage(vertx, torrent, dataDir.toString()));
+    }
+
+    @Test
+    @DisplayName("should read, write and hash ranges with memory mapped files")
+    void testMappedFileStorage() throws Exception {
+        // small regions so ranges span multiple mappings
+        testStorage(new MappedFileStorage(vertx, torrent, dataDir.toString(), 64 * 1024, 256 * 1024));
+    }
+
+    private void testStorage(StorageBackend storage) throws Exception {
+        int pieceLength = (int) torrent.getPieceLength();
+
+        byte[] bytes = new byte[(int) torrent.getLength()];
+        new Random(42).nextBytes(bytes);
+
+        Buffer data = Buffer.buffer(bytes);
+
+        // whole torrent so writes span all files
+        await(storage.writePiece(0, data, true));
+
+        Buffer block = await(storage.readBlock(3, 100, 20_000));
+
+        assertThat(block.getBytes()).isEqualTo(data.getBytes(3 * pieceLength + 100, 3 * pieceLength + 20_100));
+
+        int lastPiece = (int) torrent.getPiecesCount() - 1;
+        int lastPieceLength = (int) torrent.getLengthForPiece(lastPiece);
+
+        assertThat(await(storage.hashRange(lastPiece, 0, lastPieceLength)))
+                .isEqualTo(HashUtils.sha1(data.getBytes(lastPiece * pieceLength, bytes.length)));
+
+        await(storage.close());
+    }
+}
@@ -0,0 +1,53 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import vertx.bittorrent.StreamingWindow;
+import vertx.bittorrent.model.Bitfield;
+
+public class StreamingWindowTest extends TorrentTestBase {
+    @Test
+    @DisplayName("should advance the window as pieces are completed")
+    void testWindow() {
+        long pieceLength = torrent.getPieceLength();
+
+        StreamingWindow window = new StreamingWindow(torrent, pieceLength + 100, Long.MAX_VALUE, 0);
+
+        assertThat(window.getFirstPiece()).isEqualTo(1);
+        assertThat(window.getLastPiece()).isEqualTo((int) torrent.getPiecesCount() - 1);
+
+        Bitfield bitfield = Bitfield.fromSize((int) torrent.getPiecesCount());
+        bitfield.setPiece(1);
+        bitfield.setPiece(3);
+
+        assertThat(window.getMissingPieces(bitfield, 3, i -> true)).containsExactly(2, 4, 5);
+
+        // pieces that can't be downloaded right now are skipped
+        assertThat(window.getMissingPieces(bitfield, 3, i -> i != 4)).containsExactly(2, 5, 6);
+
+        bitfield.setPiece(2);
+
+        assertThat(window.getMissingPieces(bitfield, 3, i -> true)).containsExactly(4, 5, 6);
+    }
+
+    @Test
+    @DisplayName("should put deadlines of pieces further ahead at risk later")
+    void testDeadlines() {
+        long pieceLength = torrent.getPieceLength();
+        long bytesPerSecond = 4 * pieceLength;
+
+        StreamingWindow window = new StreamingWindow(torrent, 0, Long.MAX_VALUE, bytesPerSecond);
+
+        long start = window.getCreatedAt();
+
+        // four pieces per second
+        assertThat(window.getDeadline(4) - window.getDeadline(0)).isEqualTo(1_000);
+
+        assertThat(window.isDeadlineAtRisk(0, start)).isFalse();
+        assertThat(window.isDeadlineAtRisk(0, start + 1_000)).isTrue();
+        assertThat(window.isDeadlineAtRisk(4, start + 1_000)).isFalse();
+        assertThat(window.isDeadlineAtRisk(4, start + 2_000)).isTrue();
+    }
+}
@@ -0,0 +1,174 @@
+package vertx.bittorrent.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vertx.bittorrent.Piece;
+import vertx.bittorrent.PieceBufferPool;
+import vertx.bittorrent.PieceState;
+import vertx.bittorrent.ProtocolHandler;
+import vertx.bittorrent.TorrentState;
+import vertx.bittorrent.model.FileInfo;
+import vertx.bittorrent.storage.StorageBackend;
+
+public class TorrentStateTest extends TorrentTestBase {
+    @TempDir
+    Path dataDir;
+
+    @Test
+    @DisplayName("should reject blocks exceeding the piece")
+    void testBlockBounds() {
+        TorrentState torrentState = new TorrentState(vertx, torrent, dataDir.toString());
+
+        int pieceLength = (int) torrent.getPieceLength();
+
+        // begin + length overflows
+        assertFailed(torrentState.readBlock(0, 1, Integer.MAX_VALUE));
+        assertFailed(torrentState.getFileSpans(0, 1, Integer.MAX_VALUE));
+
+        assertFailed(torrentState.readBlock(0, pieceLength, 1));
+        assertFailed(torrentState.readBlock(0, -1, 1));
+        assertFailed(torrentState.getFileSpans(0, pieceLength - 10, 11));
+    }
+
+    @Test
+    @DisplayName("should merge adjacent pieces in the write cache and count them until they were written")
+    void testWriteCache() throws Exception {
+        RecordingStorage storage = new RecordingStorage();
+
+        TorrentState torrentState = new TorrentState(vertx, torrent, storage);
+        torrentState.setWriteCacheSize(4 * torrent.getPieceLength());
+        torrentState.setWriteCacheAge(60_000);
+
+        int pieceLength = (int) torrent.getPieceLength();
+
+        Future<Void> first = torrentState.writePieceToDisk(piece(0));
+        Future<Void> replaced = torrentState.writePieceToDisk(piece(1));
+        Future<Void> second = torrentState.writePieceToDisk(piece(1));
+        Future<Void> third = torrentState.writePieceToDisk(piece(3));
+
+        assertThat(replaced.failed()).isTrue();
+        assertThat(storage.writes).isEmpty();
+        assertThat(torrentState.getPendingWriteBytes()).isEqualTo(3L * pieceLength);
+
+        torrentState.flushWrites();
+
+        assertThat(storage.writes).containsExactly("0 0 " + 2 * pieceLength, "3 0 " + pieceLength);
+
+        // pieces being written still count against the cache size
+        assertThat(torrentState.getPendingWriteBytes()).isEqualTo(3L * pieceLength);
+
+        storage.completeWrites();
+
+        assertThat(first.succeeded()).isTrue();
+        assertThat(second.succeeded()).isTrue();
+        assertThat(third.succeeded()).isTrue();
+        assertThat(torrentState.getPendingWriteBytes()).isZero();
+        assertThat(torrentState.isWriteCacheFull()).isFalse();
+    }
+
+    @Test
+    @DisplayName("should write pieces once they reached the maximum age in the write cache")
+    void testWriteCacheAge() throws Exception {
+        RecordingStorage storage = new RecordingStorage();
+        storage.completeImmediately = true;
+
+        TorrentState torrentState = new TorrentState(vertx, torrent, storage);
+        torrentState.setWriteCacheSize(4 * torrent.getPieceLength());
+        torrentState.setWriteCacheAge(50);
+
+        await(torrentState.writePieceToDisk(piece(2)));
+
+        assertThat(storage.writes).containsExactly("2 0 " + torrent.getPieceLength());
+        assertThat(torrentState.getPendingWriteBytes()).isZero();
+    }
+
+    @Test
+    @DisplayName("should overwrite the saved blocks of a piece that failed the hash check")
+    void testInvalidateBlocks() throws Exception {
+        RecordingStorage storage = new RecordingStorage();
+        storage.completeImmediately = true;
+
+        TorrentState torrentState = new TorrentState(vertx, torrent, storage);
+
+        PieceState pieceState = new PieceState(1, torrent.getLengthForPiece(1), new PieceBufferPool(0));
+        pieceState.setBlockSaved(0);
+        pieceState.setBlockSaved(2);
+
+        await(torrentState.invalidateBlocks(pieceState));
+
+        int blockSize = ProtocolHandler.MAX_BLOCK_SIZE;
+
+        assertThat(storage.writes).containsExactly("1 0 " + blockSize, "1 " + 2 * blockSize + " " + blockSize);
+        assertThat(pieceState.isBlockSaved(0)).isFalse();
+        assertThat(pieceState.isBlockSaved(2)).isFalse();
+    }
+
+    private Piece piece(int index) {
+        return Piece.builder()
+                .index(index)
+                .data(Buffer.buffer(new byte[(int) torrent.getLengthForPiece(index)]))
+                .hashValid(true)
+                .build();
+    }
+
+    private static void assertFailed(Future<?> future) {
+        assertThat(future.failed()).isTrue();
+        assertThat(future.cause()).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    // records writes and completes them on demand
+    private static class RecordingStorage implements StorageBackend {
+        private final List<String> writes = new ArrayList<>();
+        private final List<Promise<Void>> pendingWrites = new ArrayList<>();
+
+        private volatile boolean completeImmediately = false;
+
+        @Override
+        public Future<Buffer> readBlock(int pieceIndex, int begin, int length) {
+            return Future.failedFuture("not supported");
+        }
+
+        @Override
+        public synchronized Future<Void> writeBlock(int pieceIndex, int begin, Buffer data, boolean sync) {
+            writes.add(pieceIndex + " " + begin + " " + data.length());
+
+            if (completeImmediately) {
+                return Future.succeededFuture();
+            }
+
+            Promise<Void> promise = Promise.promise();
+            pendingWrites.add(promise);
+
+            return promise.future();
+        }
+
+        @Override
+        public Future<byte[]> hashRange(int pieceIndex, int begin, int length) {
+            return Future.failedFuture("not supported");
+        }
+
+        @Override
+        public String getPath(FileInfo fileInfo) {
+            return fileInfo.getPath();
+        }
+
+        @Override
+        public Future<Void> close() {
+            return Future.succeededFuture();
+        }
+
+        private synchronized void completeWrites() {
+            pendingWrites.forEach(Promise::complete);
+            pendingWrites.clear();
+        }
+    }
+}
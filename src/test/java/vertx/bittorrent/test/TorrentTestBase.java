@@ -0,0 +1,25 @@
+package vertx.bittorrent.test;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import vertx.bittorrent.model.Torrent;
+
+/**
+ * Provides the multi-file test torrent and a Vert.x instance that is closed after each test.
+ */
+public abstract class TorrentTestBase {
+    protected final Vertx vertx = Vertx.vertx();
+
+    protected final Torrent torrent =
+            Torrent.fromBuffer(vertx.fileSystem().readFileBlocking("src/test/resources/multifile-test.torrent"));
+
+    @AfterEach
+    void closeVertx() throws Exception {
+        await(vertx.close());
+    }
+
+    protected static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get();
+    }
+}